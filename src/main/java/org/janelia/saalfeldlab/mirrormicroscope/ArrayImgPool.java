@@ -0,0 +1,183 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+
+/**
+ * Recycles the array images of input slabs and output blocks, so that the
+ * steady state of a run allocates few block sized arrays.
+ * <p>
+ * Images are pooled by type and dimensions, up to a number of images per
+ * shape and a total number of bytes. Output blocks of a grid have few
+ * distinct shapes (the border blocks), but slabs are as deep as the z-halo
+ * of their column, which differs from column to column. When the bytes are
+ * exceeded, the images that were returned longest ago are dropped, so the
+ * pool holds the shapes that are in use.
+ */
+public class ArrayImgPool {
+
+	private final int maxPerShape;
+	private final long maxBytes;
+	private final HashMap<String, ArrayDeque<ArrayImg<?, ?>>> pool = new HashMap<>();
+	// pooled images, returned longest ago first
+	private final ArrayDeque<Pooled> order = new ArrayDeque<>();
+	private long bytes = 0;
+
+	private long allocations = 0;
+	private long reuses = 0;
+
+	/**
+	 * @param maxPerShape number of images that are kept for every shape,
+	 *        e.g. the number of blocks in flight
+	 * @param maxBytes number of bytes of all kept images
+	 */
+	public ArrayImgPool(final int maxPerShape, final long maxBytes) {
+
+		this.maxPerShape = maxPerShape;
+		this.maxBytes = maxBytes;
+	}
+
+	private static class Pooled {
+
+		final String key;
+		final ArrayImg<?, ?> img;
+		final long bytes;
+
+		Pooled(final String key, final ArrayImg<?, ?> img, final long bytes) {
+
+			this.key = key;
+			this.img = img;
+			this.bytes = bytes;
+		}
+	}
+
+	private static String key(final NativeType<?> type, final long[] dimensions) {
+		return type.getClass().getName() + Arrays.toString(dimensions);
+	}
+
+	/**
+	 * @param type the type
+	 * @param dimensions the dimensions
+	 * @param clear whether a recycled image has to be zero, new images are
+	 * @return an image
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends NativeType<T>> ArrayImg<T, ?> acquire(final T type, final long[] dimensions, final boolean clear) {
+
+		ArrayImg<T, ?> img = null;
+		synchronized (this) {
+			final ArrayDeque<ArrayImg<?, ?>> images = pool.get(key(type, dimensions));
+			if (images != null && !images.isEmpty()) {
+				img = (ArrayImg<T, ?>)images.pop();
+				remove(img);
+				reuses++;
+			} else
+				allocations++;
+		}
+
+		if (img == null)
+			return new ArrayImgFactory<>(type).create(dimensions);
+
+		if (clear)
+			clear(((ArrayDataAccess<?>)img.update(null)).getCurrentStorageArray());
+
+		return img;
+	}
+
+	/**
+	 * Returns an image to the pool. It must not be used afterwards.
+	 */
+	public <T extends NativeType<T>> void release(final T type, final ArrayImg<T, ?> img) {
+
+		final String key = key(type, img.dimensionsAsLongArray());
+		final long imgBytes = bytes(((ArrayDataAccess<?>)img.update(null)).getCurrentStorageArray());
+		if (imgBytes > maxBytes)
+			return;
+
+		synchronized (this) {
+			final ArrayDeque<ArrayImg<?, ?>> images = pool.computeIfAbsent(key, k -> new ArrayDeque<>());
+			if (images.size() >= maxPerShape)
+				return;
+
+			images.push(img);
+			order.addLast(new Pooled(key, img, imgBytes));
+			bytes += imgBytes;
+			while (bytes > maxBytes) {
+				final Pooled oldest = order.removeFirst();
+				pool.get(oldest.key).removeLastOccurrence(oldest.img);
+				bytes -= oldest.bytes;
+			}
+		}
+	}
+
+	private void remove(final ArrayImg<?, ?> img) {
+
+		for (final Iterator<Pooled> it = order.iterator(); it.hasNext();) {
+			final Pooled pooled = it.next();
+			if (pooled.img == img) {
+				it.remove();
+				bytes -= pooled.bytes;
+				return;
+			}
+		}
+	}
+
+	private static long bytes(final Object array) {
+
+		final long length = Array.getLength(array);
+		if (array instanceof short[])
+			return 2 * length;
+		else if (array instanceof int[] || array instanceof float[])
+			return 4 * length;
+		else if (array instanceof long[] || array instanceof double[])
+			return 8 * length;
+
+		return length;
+	}
+
+	private static void clear(final Object array) {
+
+		if (array instanceof short[])
+			Arrays.fill((short[])array, (short)0);
+		else if (array instanceof byte[])
+			Arrays.fill((byte[])array, (byte)0);
+		else if (array instanceof int[])
+			Arrays.fill((int[])array, 0);
+		else if (array instanceof long[])
+			Arrays.fill((long[])array, 0);
+		else if (array instanceof float[])
+			Arrays.fill((float[])array, 0);
+		else if (array instanceof double[])
+			Arrays.fill((double[])array, 0);
+	}
+
+	/**
+	 * @return number of images that were allocated
+	 */
+	public synchronized long getAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * @return number of bytes of the pooled images
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return number of images that were recycled
+	 */
+	public synchronized long getReuses() {
+		return reuses;
+	}
+
+}
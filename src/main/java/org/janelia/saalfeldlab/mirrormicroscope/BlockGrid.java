@@ -0,0 +1,90 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * A regular grid of blocks covering a zero-min interval.
+ * <p>
+ * Blocks are indexed linearly with the first dimension varying fastest, the
+ * same order N5 uses for grid positions. Blocks at the upper border are
+ * cropped to the interval.
+ */
+public class BlockGrid {
+
+	private final long[] dimensions;
+	private final int[] blockSize;
+	private final long[] gridDimensions;
+	private final long numBlocks;
+
+	public BlockGrid(final long[] dimensions, final int[] blockSize) {
+
+		this.dimensions = dimensions.clone();
+		this.blockSize = blockSize.clone();
+
+		gridDimensions = new long[dimensions.length];
+		long n = 1;
+		for (int d = 0; d < dimensions.length; d++) {
+			gridDimensions[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+			n *= gridDimensions[d];
+		}
+		numBlocks = n;
+	}
+
+	public int numDimensions() {
+		return dimensions.length;
+	}
+
+	public long numBlocks() {
+		return numBlocks;
+	}
+
+	public long[] getDimensions() {
+		return dimensions.clone();
+	}
+
+	public int[] getBlockSize() {
+		return blockSize.clone();
+	}
+
+	public long[] getGridDimensions() {
+		return gridDimensions.clone();
+	}
+
+	public long[] gridPosition(final long index) {
+
+		final long[] gridPosition = new long[dimensions.length];
+		gridPosition(index, gridPosition);
+		return gridPosition;
+	}
+
+	public void gridPosition(final long index, final long[] gridPosition) {
+
+		long i = index;
+		for (int d = 0; d < dimensions.length; d++) {
+			gridPosition[d] = i % gridDimensions[d];
+			i /= gridDimensions[d];
+		}
+	}
+
+	public long index(final long[] gridPosition) {
+
+		long i = 0;
+		for (int d = dimensions.length - 1; d >= 0; d--)
+			i = i * gridDimensions[d] + gridPosition[d];
+
+		return i;
+	}
+
+	public Interval blockInterval(final long[] gridPosition) {
+
+		final long[] min = new long[dimensions.length];
+		final long[] max = new long[dimensions.length];
+		for (int d = 0; d < dimensions.length; d++) {
+			min[d] = gridPosition[d] * blockSize[d];
+			max[d] = Math.min(min[d] + blockSize[d], dimensions[d]) - 1;
+		}
+		return new FinalInterval(min, max);
+	}
+
+}
@@ -0,0 +1,235 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FileSystemKeyValueAccess;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
+import org.janelia.saalfeldlab.n5.KeyValueAccess;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+/**
+ * An on-disk record of the finished blocks of one output dataset, one bit
+ * per block.
+ * <p>
+ * The file starts with the number of blocks, followed by the bitmap of done
+ * blocks with block index i at bit i % 8 of byte i / 8, and a bitmap of the
+ * same layout of the done blocks that are omitted from the container
+ * because they are empty. A bit is set only after its block was written,
+ * and every bit is written through to the file when it is set, so a killed
+ * job leaves a manifest that can be resumed from.
+ */
+public class BlockManifest {
+
+	private static final int HEADER_SIZE = 8;
+
+	// flush to the device every this many marked blocks
+	private static final int SYNC_INTERVAL = 256;
+
+	private final File file;
+	private final long numBlocks;
+	private final byte[] bits;
+	private final byte[] omitted;
+	private final RandomAccessFile raf;
+	private int unsynced = 0;
+
+	/**
+	 * Opens the manifest of a dataset.
+	 *
+	 * @param file the manifest file
+	 * @param numBlocks the number of blocks of the dataset
+	 * @param resume keep the blocks recorded in an existing manifest,
+	 *        otherwise start from an empty one
+	 * @throws IOException
+	 */
+	public BlockManifest(final File file, final long numBlocks, final boolean resume) throws IOException {
+
+		this.file = file;
+		this.numBlocks = numBlocks;
+		bits = new byte[(int)((numBlocks + 7) / 8)];
+		omitted = new byte[bits.length];
+
+		final File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+
+		raf = new RandomAccessFile(file, "rw");
+		if (resume && raf.length() == HEADER_SIZE + 2L * bits.length && raf.readLong() == numBlocks) {
+			raf.readFully(bits);
+			raf.readFully(omitted);
+		} else {
+			if (resume && raf.length() > 0)
+				System.out.println("manifest " + file + " does not match the output, starting over");
+
+			raf.setLength(0);
+			raf.writeLong(numBlocks);
+			raf.write(bits);
+			raf.write(omitted);
+			raf.getFD().sync();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long numBlocks() {
+		return numBlocks;
+	}
+
+	public synchronized boolean isDone(final long index) {
+
+		return (bits[(int)(index >>> 3)] & (1 << (index & 7))) != 0;
+	}
+
+	public synchronized boolean isOmitted(final long index) {
+
+		return (omitted[(int)(index >>> 3)] & (1 << (index & 7))) != 0;
+	}
+
+	public synchronized long numDone() {
+
+		long n = 0;
+		for (final byte b : bits)
+			n += Integer.bitCount(b & 0xff);
+
+		return n;
+	}
+
+	/**
+	 * Records a block as written.
+	 */
+	public synchronized void markDone(final long index) {
+
+		final int i = (int)(index >>> 3);
+		bits[i] |= 1 << (index & 7);
+		try {
+			raf.seek(HEADER_SIZE + i);
+			raf.write(bits[i]);
+			if (++unsynced >= SYNC_INTERVAL) {
+				raf.getFD().sync();
+				unsynced = 0;
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Records a block as done that is not in the container, because it is
+	 * empty and the fill value is read in its place.
+	 */
+	public synchronized void markOmitted(final long index) {
+
+		final int i = (int)(index >>> 3);
+		omitted[i] |= 1 << (index & 7);
+		try {
+			raf.seek(HEADER_SIZE + bits.length + i);
+			raf.write(omitted[i]);
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		markDone(index);
+	}
+
+	/**
+	 * Records a block as missing, so it is written again.
+	 */
+	public synchronized void clear(final long index) {
+
+		final int i = (int)(index >>> 3);
+		bits[i] &= ~(1 << (index & 7));
+		omitted[i] &= ~(1 << (index & 7));
+		try {
+			raf.seek(HEADER_SIZE + i);
+			raf.write(bits[i]);
+			raf.seek(HEADER_SIZE + bits.length + i);
+			raf.write(omitted[i]);
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void close() {
+
+		try {
+			raf.getFD().sync();
+			raf.close();
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Checks the blocks that are recorded as done against the container and
+	 * clears those that are missing or too short. Omitted blocks are not
+	 * checked. Only looks at the key of
+	 * each block, and at the file size on a file system. Uncompressed blocks
+	 * have to hold at least all their elements, other blocks must not be
+	 * empty.
+	 *
+	 * @param n5 the container
+	 * @param dataset the dataset
+	 * @param attributes the attributes of the dataset
+	 * @param grid the block grid of the dataset, it may have fewer
+	 *        dimensions than the dataset
+	 * @return the number of cleared blocks
+	 */
+	public long verify(final N5Reader n5, final String dataset, final DatasetAttributes attributes, final BlockGrid grid) {
+
+		if (!(n5 instanceof GsonKeyValueN5Reader)) {
+			System.out.println("cannot verify blocks of " + n5.getClass().getSimpleName() + ", trusting the manifest");
+			return 0;
+		}
+
+		final GsonKeyValueN5Reader kvn5 = (GsonKeyValueN5Reader)n5;
+		final KeyValueAccess kva = kvn5.getKeyValueAccess();
+		final boolean raw = attributes.getCompression() instanceof RawCompression;
+		final int bytesPerElement = InputBlockCache.bytesPerElement(attributes.getDataType());
+
+		long cleared = 0;
+
+		// the grid of a downsampled level is 3d, the trailing dimensions of
+		// its 5d dataset have a single block
+		final long[] gridPosition = new long[Math.max(grid.numDimensions(), attributes.getNumDimensions())];
+		for (long i = 0; i < numBlocks; i++) {
+			if (!isDone(i) || isOmitted(i))
+				continue;
+
+			grid.gridPosition(i, gridPosition);
+			final String path = kvn5.absoluteDataBlockPath(dataset, gridPosition);
+			boolean ok = kva.isFile(path);
+			if (ok && kva instanceof FileSystemKeyValueAccess) {
+				try {
+					final long size = Files.size(Paths.get(path));
+					ok = raw ? size >= numElements(grid, gridPosition) * bytesPerElement : size > 0;
+				} catch (final IOException e) {
+					ok = false;
+				}
+			}
+
+			if (!ok) {
+				clear(i);
+				cleared++;
+			}
+		}
+		return cleared;
+	}
+
+	private static long numElements(final BlockGrid grid, final long[] gridPosition) {
+
+		final long[] dims = grid.getDimensions();
+		final int[] blockSize = grid.getBlockSize();
+		long n = 1;
+		for (int d = 0; d < dims.length; d++)
+			n *= Math.min(blockSize[d], dims[d] - gridPosition[d] * blockSize[d]);
+
+		return n;
+	}
+
+}
@@ -0,0 +1,352 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Downsampled levels of an output array, written while the full resolution
+ * blocks are written.
+ * <p>
+ * Every finished block of a level is averaged into the pending block of the
+ * next level that contains it. A pending block is written, and passed on to
+ * the level after it, as soon as all of its child blocks have arrived, so the
+ * full resolution data is never read back. All levels have the block size
+ * of the full resolution level. Level dimensions are rounded up, border
+ * voxels are the mean of the voxels that exist.
+ * <p>
+ * Pending blocks hold their sums as doubles until they are complete, so
+ * the memory of a pyramid depends on the order in which level 0 blocks
+ * arrive. {@link SetupCorrection#blockAt} walks tiles of columns that
+ * cover one block of the coarsest level, layer by layer in z, so that only
+ * the parents of the layers of the current tile are pending. Walking single
+ * columns with z fastest would keep the parents of all z-layers pending.
+ * <p>
+ * Blocks that are zero are not written, as for level 0.
+ */
+public class BlockPyramid<T extends NumericType<T> & NativeType<T>> {
+
+	private final N5Writer n5w;
+	private final T type;
+
+	private final String[] datasets;
+	private final DatasetAttributes[] attributes;
+	private final BlockGrid[] grids;
+
+	// factors of each level relative to the previous level
+	private final int[][] relativeFactors;
+
+	private final HashMap<Long, Pending>[] pending;
+
+	private final BlockManifest[] manifests;
+
+	// levels that existed before, whose omitted zero blocks have to be deleted
+	private final boolean[] existed;
+
+	// bytes of the sums of pending blocks
+	private final AtomicLong pendingBytes = new AtomicLong();
+	private final AtomicLong peakPendingBytes = new AtomicLong();
+
+	/**
+	 * Creates the datasets of the downsampled levels.
+	 *
+	 * @param n5w the writer
+	 * @param group the multiscale group, level l is written to group/l
+	 * @param dimensions 3d dimensions of level 0
+	 * @param blockSize 3d block size
+	 * @param factors absolute 3d downsampling factors of all levels including
+	 *        level 0, each an integer multiple of the previous one
+	 * @param dataType the data type
+	 * @param compression the compression
+	 * @param type the pixel type, has to be a {@link RealType}
+	 */
+	@SuppressWarnings("unchecked")
+	public BlockPyramid(
+			final N5Writer n5w,
+			final String group,
+			final long[] dimensions,
+			final int[] blockSize,
+			final double[][] factors,
+			final DataType dataType,
+			final Compression compression,
+			final T type) {
+
+		if (!(type instanceof RealType))
+			throw new IllegalArgumentException("downsampling needs a real type, got " + type.getClass().getSimpleName());
+
+		this.n5w = n5w;
+		this.type = type.createVariable();
+
+		final int numLevels = factors.length;
+		datasets = new String[numLevels];
+		attributes = new DatasetAttributes[numLevels];
+		grids = new BlockGrid[numLevels];
+		relativeFactors = new int[numLevels][3];
+		pending = new HashMap[numLevels];
+		manifests = new BlockManifest[numLevels];
+		existed = new boolean[numLevels];
+
+		for (int l = 0; l < numLevels; l++) {
+			final long[] dims = new long[3];
+			for (int d = 0; d < 3; d++) {
+				if (l > 0) {
+					final double f = factors[l][d] / factors[l - 1][d];
+					relativeFactors[l][d] = (int)Math.round(f);
+					if (relativeFactors[l][d] < 1 || Math.abs(f - relativeFactors[l][d]) > 1e-9)
+						throw new IllegalArgumentException("factors of level " + l + " are not a multiple of the previous level");
+				}
+				dims[d] = (long)Math.ceil(dimensions[d] / factors[l][d]);
+			}
+
+			datasets[l] = group + "/" + l;
+			grids[l] = new BlockGrid(dims, blockSize);
+			pending[l] = new HashMap<>();
+			if (l > 0) {
+				existed[l] = n5w.datasetExists(datasets[l]);
+				n5w.createDataset(datasets[l],
+						new long[]{dims[0], dims[1], dims[2], 1, 1},
+						new int[]{blockSize[0], blockSize[1], blockSize[2], 1, 1},
+						dataType, compression);
+				attributes[l] = n5w.getDatasetAttributes(datasets[l]);
+			}
+		}
+	}
+
+	public int numLevels() {
+		return grids.length;
+	}
+
+	public BlockGrid getGrid(final int level) {
+		return grids[level];
+	}
+
+	public String getDataset(final int level) {
+		return datasets[level];
+	}
+
+	public DatasetAttributes getAttributes(final int level) {
+		return attributes[level];
+	}
+
+	/**
+	 * Blocks of a level that are recorded as done in its manifest are not
+	 * written again.
+	 */
+	public void setManifest(final int level, final BlockManifest manifest) {
+		manifests[level] = manifest;
+	}
+
+	public void closeManifests() {
+
+		for (final BlockManifest manifest : manifests)
+			if (manifest != null)
+				manifest.close();
+	}
+
+	/**
+	 * @return the largest number of bytes of the sums of pending blocks
+	 */
+	public long getPeakPendingBytes() {
+		return peakPendingBytes.get();
+	}
+
+	/**
+	 * @param gridPosition the grid position of a level 0 block
+	 * @return whether the blocks of all coarser levels that contain the
+	 *         block are recorded as done
+	 */
+	public boolean ancestorsDone(final long[] gridPosition) {
+
+		final long[] position = new long[]{gridPosition[0], gridPosition[1], gridPosition[2]};
+		for (int l = 1; l < grids.length; l++) {
+			for (int d = 0; d < 3; d++)
+				position[d] /= relativeFactors[l][d];
+
+			if (manifests[l] == null || !manifests[l].isDone(grids[l].index(position)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a finished block to the level below it, writing every block of the
+	 * coarser levels that is complete afterwards. Can be called from several
+	 * threads.
+	 *
+	 * @param level the level of the block
+	 * @param gridPosition the 3d grid position of the block
+	 * @param block the zero-min block, x varying fastest
+	 */
+	public void add(final int level, final long[] gridPosition, final RandomAccessibleInterval<T> block) {
+
+		arrive(level, gridPosition, block);
+	}
+
+	/**
+	 * Adds a block that is zero and was not written.
+	 *
+	 * @param level the level of the block
+	 * @param gridPosition the 3d grid position of the block
+	 */
+	public void addEmpty(final int level, final long[] gridPosition) {
+
+		arrive(level, gridPosition, null);
+	}
+
+	private void arrive(final int level, final long[] gridPosition, final RandomAccessibleInterval<T> block) {
+
+		final int parentLevel = level + 1;
+		if (parentLevel >= grids.length)
+			return;
+
+		final BlockGrid grid = grids[level];
+		final BlockGrid parentGrid = grids[parentLevel];
+		final int[] f = relativeFactors[parentLevel];
+		final int[] blockSize = grid.getBlockSize();
+
+		final long[] parentPosition = new long[3];
+		for (int d = 0; d < 3; d++)
+			parentPosition[d] = gridPosition[d] / f[d];
+
+		final long parentIndex = parentGrid.index(parentPosition);
+		final Pending p;
+		synchronized (pending[parentLevel]) {
+			Pending q = pending[parentLevel].get(parentIndex);
+			if (q == null) {
+				q = new Pending(parentGrid, parentPosition, numChildren(grid, parentPosition, f));
+				pending[parentLevel].put(parentIndex, q);
+			}
+			p = q;
+		}
+
+		synchronized (p) {
+			if (block != null) {
+				// zero blocks add nothing to the sums
+				if (p.sum == null) {
+					p.sum = new double[p.size[0] * p.size[1] * p.size[2]];
+					final long bytes = pendingBytes.addAndGet(8L * p.sum.length);
+					peakPendingBytes.accumulateAndGet(bytes, Math::max);
+				}
+
+				final long sx = block.dimension(0);
+				final long sy = block.dimension(1);
+				final long sz = block.dimension(2);
+				final Cursor<T> c = Views.flatIterable(block).cursor();
+				for (long z = 0; z < sz; z++) {
+					final int pz = (int)((gridPosition[2] * blockSize[2] + z) / f[2] - p.min[2]);
+					for (long y = 0; y < sy; y++) {
+						final int py = (int)((gridPosition[1] * blockSize[1] + y) / f[1] - p.min[1]);
+						final int row = (pz * p.size[1] + py) * p.size[0];
+						for (long x = 0; x < sx; x++) {
+							final int px = (int)((gridPosition[0] * blockSize[0] + x) / f[0] - p.min[0]);
+							p.sum[row + px] += ((RealType<?>)c.next()).getRealDouble();
+						}
+					}
+				}
+			}
+			if (++p.received < p.expected)
+				return;
+		}
+
+		synchronized (pending[parentLevel]) {
+			pending[parentLevel].remove(parentIndex);
+		}
+		if (p.sum != null)
+			pendingBytes.addAndGet(-8L * p.sum.length);
+
+		final long[] parentGridPosition = new long[]{parentPosition[0], parentPosition[1], parentPosition[2], 0, 0};
+		final ArrayImg<T, ?> parentBlock = p.sum == null ? null : mean(p, grid.getDimensions(), f);
+		final BlockManifest manifest = manifests[parentLevel];
+		if (parentBlock == null || SetupCorrection.isZero(((ArrayDataAccess<?>)parentBlock.update(null)).getCurrentStorageArray())) {
+			if (existed[parentLevel])
+				n5w.deleteBlock(datasets[parentLevel], parentGridPosition);
+			if (manifest != null)
+				manifest.markOmitted(parentIndex);
+
+			arrive(parentLevel, parentPosition, null);
+			return;
+		}
+
+		if (manifest == null || !manifest.isDone(parentIndex)) {
+			N5Utils.saveBlock(
+					Views.addDimension(Views.addDimension(parentBlock, 0, 0), 0, 0),
+					n5w, datasets[parentLevel], attributes[parentLevel],
+					parentGridPosition);
+			if (manifest != null)
+				manifest.markDone(parentIndex);
+		}
+
+		arrive(parentLevel, parentPosition, parentBlock);
+	}
+
+	private ArrayImg<T, ?> mean(final Pending p, final long[] childDimensions, final int[] f) {
+
+		final ArrayImg<T, ?> img = new ArrayImgFactory<>(type).create(p.size[0], p.size[1], p.size[2]);
+		final Cursor<T> c = img.cursor();
+		int i = 0;
+		for (int z = 0; z < p.size[2]; z++) {
+			final long nz = count(p.min[2] + z, f[2], childDimensions[2]);
+			for (int y = 0; y < p.size[1]; y++) {
+				final long nyz = nz * count(p.min[1] + y, f[1], childDimensions[1]);
+				for (int x = 0; x < p.size[0]; x++) {
+					final long n = nyz * count(p.min[0] + x, f[0], childDimensions[0]);
+					((RealType<?>)c.next()).setReal(p.sum[i++] / n);
+				}
+			}
+		}
+		return img;
+	}
+
+	/**
+	 * @return the number of child voxels of voxel v along a dimension
+	 */
+	private static long count(final long v, final int f, final long childDimension) {
+		return Math.min(f, childDimension - v * f);
+	}
+
+	private static long numChildren(final BlockGrid grid, final long[] parentPosition, final int[] f) {
+
+		final long[] gridDimensions = grid.getGridDimensions();
+		long n = 1;
+		for (int d = 0; d < 3; d++)
+			n *= Math.min(f[d], gridDimensions[d] - parentPosition[d] * f[d]);
+
+		return n;
+	}
+
+	private static class Pending {
+
+		final long[] min = new long[3];
+		final int[] size = new int[3];
+		double[] sum;
+		final long expected;
+		long received = 0;
+
+		Pending(final BlockGrid grid, final long[] gridPosition, final long expected) {
+
+			final long[] dims = grid.getDimensions();
+			final int[] blockSize = grid.getBlockSize();
+			for (int d = 0; d < 3; d++) {
+				min[d] = gridPosition[d] * blockSize[d];
+				size[d] = (int)Math.min(blockSize[d], dims[d] - min[d]);
+			}
+			this.expected = expected;
+		}
+	}
+
+}
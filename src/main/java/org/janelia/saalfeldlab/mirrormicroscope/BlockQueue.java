@@ -0,0 +1,303 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A single queue over the output blocks of several setups.
+ * <p>
+ * Blocks are handed out setup by setup, so workers that finish the tail
+ * of one setup move on to the next one instead of idling. Within a setup,
+ * blocks are handed out in the order of {@link SetupCorrection#blockAt},
+ * restricted to the part of the schedule of this process, or to the ranges
+ * of the schedule that this process claims from {@link WorkClaims}.
+ * <p>
+ * A second cursor runs ahead of the handed out blocks. It claims and
+ * schedules a range of a setup when it reaches it, and prefetches the input
+ * of the blocks it passes, so that input is in flight before a worker needs
+ * it. More setups, e.g. of the next timepoint, are prepared in the
+ * background while the setups before them are written, one batch at a
+ * time, and appended when this cursor reaches them. Workers wait for a
+ * batch that is not ready yet without holding the queue.
+ */
+public class BlockQueue {
+
+	private final List<SetupCorrection<?>> setups;
+	private final Iterator<? extends Supplier<? extends List<? extends SetupCorrection<?>>>> more;
+	private final Executor prefetchExecutor;
+	// the next batch of setups, while it is prepared or until it is reached
+	private CompletableFuture<? extends List<? extends SetupCorrection<?>>> pending;
+	private final int prefetchDepth;
+
+	private WorkClaims claims;
+	private long claimSize;
+
+	// ranges of the schedule in the order in which they are handed out,
+	// appended by the prefetch cursor and followed by the workers
+	private final List<Range> ranges = new ArrayList<>();
+	private int setupIndex = 0;
+	private long nextRange = 0;
+
+	private final Cursor head = new Cursor(false);
+	private final Cursor ahead = new Cursor(true);
+	private long numHandedOut = 0;
+	private long numAhead = 0;
+
+	/**
+	 * @param setups the setups
+	 * @param prefetchExecutor executor for reading input, null to read input
+	 *        only when it is needed
+	 * @param prefetchDepth number of blocks to prefetch ahead of the workers
+	 */
+	public BlockQueue(final List<? extends SetupCorrection<?>> setups, final Executor prefetchExecutor, final int prefetchDepth) {
+
+		this(setups, Collections.emptyIterator(), prefetchExecutor, prefetchDepth);
+	}
+
+	/**
+	 * @param setups the setups
+	 * @param more batches of setups that are appended when the queue reaches
+	 *        them, in order. Each is prepared on the prefetch executor, or
+	 *        on the common pool without one, while the setups before it are
+	 *        written.
+	 * @param prefetchExecutor executor for reading input, null to read input
+	 *        only when it is needed
+	 * @param prefetchDepth number of blocks to prefetch ahead of the workers
+	 */
+	public BlockQueue(
+			final List<? extends SetupCorrection<?>> setups,
+			final Iterator<? extends Supplier<? extends List<? extends SetupCorrection<?>>>> more,
+			final Executor prefetchExecutor,
+			final int prefetchDepth) {
+
+		this.setups = new ArrayList<>(setups);
+		this.more = more;
+		this.prefetchExecutor = prefetchExecutor;
+		this.prefetchDepth = prefetchDepth;
+		prepareNext();
+	}
+
+	/**
+	 * Starts preparing the next batch of setups, if there is one.
+	 */
+	private void prepareNext() {
+
+		if (!more.hasNext())
+			pending = null;
+		else if (prefetchExecutor == null)
+			pending = CompletableFuture.supplyAsync(more.next());
+		else
+			pending = CompletableFuture.supplyAsync(more.next(), prefetchExecutor);
+	}
+
+	/**
+	 * Shares the blocks with other processes. The schedule of every setup is
+	 * cut into ranges of claimSize positions, and only the ranges that this
+	 * process claims are handed out.
+	 *
+	 * @param claims the claims
+	 * @param claimSize the number of positions of a range
+	 */
+	public void setClaims(final WorkClaims claims, final long claimSize) {
+
+		this.claims = claims;
+		this.claimSize = claimSize;
+	}
+
+	/**
+	 * @return the number of blocks of the setups that were added so far
+	 */
+	public synchronized long numBlocks() {
+
+		long n = 0;
+		for (final SetupCorrection<?> setup : setups)
+			n += setup.numBlocks();
+
+		return n;
+	}
+
+	/**
+	 * @return the next block, or null if the queue is drained
+	 */
+	public Block next() {
+
+		while (true) {
+			final CompletableFuture<?> batch;
+			synchronized (this) {
+				while (numAhead <= numHandedOut + prefetchDepth) {
+					final Block block = ahead.next();
+					if (block == null)
+						break;
+
+					if (prefetchExecutor != null)
+						block.setup.prefetch(block.index, prefetchExecutor);
+
+					numAhead++;
+				}
+
+				final Block block = head.next();
+				if (block != null)
+					numHandedOut++;
+
+				if (block != null || pending == null)
+					return block;
+
+				batch = pending;
+			}
+
+			// the next batch is still being prepared
+			batch.join();
+		}
+	}
+
+	/**
+	 * Writes blocks until the queue is drained. Can be called from several
+	 * threads.
+	 */
+	public void drain() {
+
+		Block block;
+		while ((block = next()) != null) {
+			block.setup.writeBlock(block.index);
+			block.range.written();
+		}
+	}
+
+	/**
+	 * Schedules the next range of the schedule that this process writes.
+	 *
+	 * @return false if there is none, or none until the next batch of
+	 *         setups is prepared
+	 */
+	private boolean addRange() {
+
+		while (setupIndex < setups.size() || pending != null) {
+			if (setupIndex == setups.size()) {
+				if (!pending.isDone())
+					return false;
+
+				setups.addAll(pending.join());
+				prepareNext();
+				continue;
+			}
+
+			final SetupCorrection<?> setup = setups.get(setupIndex);
+			final long first = setup.firstPosition();
+			final long end = setup.endPosition();
+			if (claims == null) {
+				setupIndex++;
+				if (end == first) {
+					setup.scheduleComplete();
+					continue;
+				}
+				setup.schedule(first, end);
+				setup.scheduleComplete();
+				ranges.add(new Range(setup, first, end, null));
+				return true;
+			}
+
+			final long numRanges = (end - first + claimSize - 1) / claimSize;
+			final String layout = setup.scheduleLayout() + "-claim" + claimSize;
+			while (nextRange < numRanges) {
+				final long r = nextRange++;
+				final WorkClaims.Claim claim;
+				try {
+					claim = claims.claim(setup.getOutputDataset(), layout, r);
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				if (claim != null) {
+					final long from = first + r * claimSize;
+					final long to = Math.min(end, from + claimSize);
+					setup.schedule(from, to);
+					ranges.add(new Range(setup, from, to, claim));
+					return true;
+				}
+			}
+			setup.scheduleComplete();
+			setupIndex++;
+			nextRange = 0;
+		}
+		return false;
+	}
+
+	private class Cursor {
+
+		private final boolean ahead;
+
+		private int rangeIndex = 0;
+		private long position = -1;
+
+		Cursor(final boolean ahead) {
+			this.ahead = ahead;
+		}
+
+		Block next() {
+
+			while (true) {
+				if (rangeIndex == ranges.size() && !(ahead && addRange()))
+					return null;
+
+				final Range range = ranges.get(rangeIndex);
+				if (position < 0)
+					position = range.from;
+
+				if (position < range.to)
+					return new Block(range.setup, range.setup.blockAt(position++), range);
+
+				rangeIndex++;
+				position = -1;
+			}
+		}
+	}
+
+	/**
+	 * A range of the schedule of a setup, and its claim if it is shared.
+	 */
+	private static class Range {
+
+		final SetupCorrection<?> setup;
+		final long from;
+		final long to;
+		final WorkClaims.Claim claim;
+		final AtomicLong remaining;
+
+		Range(final SetupCorrection<?> setup, final long from, final long to, final WorkClaims.Claim claim) {
+
+			this.setup = setup;
+			this.from = from;
+			this.to = to;
+			this.claim = claim;
+			remaining = new AtomicLong(to - from);
+		}
+
+		void written() {
+
+			if (remaining.decrementAndGet() == 0 && claim != null)
+				claim.done();
+		}
+	}
+
+	public static class Block {
+
+		public final SetupCorrection<?> setup;
+		public final long index;
+		private final Range range;
+
+		Block(final SetupCorrection<?> setup, final long index, final Range range) {
+
+			this.setup = setup;
+			this.index = index;
+			this.range = range;
+		}
+	}
+
+}
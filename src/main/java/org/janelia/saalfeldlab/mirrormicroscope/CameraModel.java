@@ -140,7 +140,14 @@ public class CameraModel {
 		return new CameraModel(columnsPerCamera, activeCameras);
 	}
 
-	private static IntStream parseIntegers(final String listOrRange) {
+	/**
+	 * Parses a comma-separated list (3,4,5,6), an endpoint-inclusive range
+	 * (3-6), or a combination of both (0,3-6).
+	 *
+	 * @param listOrRange the list or range
+	 * @return the integers
+	 */
+	public static IntStream parseIntegers(final String listOrRange) {
 
 		return Arrays.stream(listOrRange.split(",")).flatMapToInt( s -> {
 			if( s.contains("-"))
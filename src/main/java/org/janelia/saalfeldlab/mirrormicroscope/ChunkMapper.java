@@ -0,0 +1,44 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Memory maps the chunks of an uncompressed input, so that input is read
+ * from the page cache without decoding it into new arrays.
+ */
+public interface ChunkMapper {
+
+	/**
+	 * A mapped chunk, x varying fastest.
+	 */
+	public static class Chunk {
+
+		public final int[] size;
+		private final ByteBuffer data;
+		private final ByteOrder order;
+
+		public Chunk(final int[] size, final ByteBuffer data, final ByteOrder order) {
+
+			this.size = size;
+			this.data = data;
+			this.order = order;
+		}
+
+		/**
+		 * @return a buffer of the data of the chunk for one reader
+		 */
+		public ByteBuffer data() {
+			return data.duplicate().order(order);
+		}
+	}
+
+	/**
+	 * @param gridPosition the grid position of the chunk
+	 * @return the mapped chunk, or null if it does not exist
+	 * @throws IOException
+	 */
+	public Chunk map(long[] gridPosition) throws IOException;
+
+}
@@ -0,0 +1,207 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.util.Locale;
+
+/**
+ * Interpolation weights along z for a rectangle of (x,y) columns.
+ * <p>
+ * Because the correction shifts every column by a constant amount, the
+ * source position of output voxel (x, y, z) is z - dz(x,y) and its
+ * fractional part does not depend on z. The first tap of column i reads
+ * source z + offsets[i], tap k reads z + offsets[i] + k, and is weighted
+ * with weights[i * numTaps + k].
+ */
+public class ColumnWeights {
+
+	public final long minX;
+	public final long minY;
+	public final int sizeX;
+	public final int sizeY;
+
+	public final int numTaps;
+	public final int[] offsets;
+	public final double[] weights;
+
+	private int minOffset = Integer.MAX_VALUE;
+	private int maxOffset = Integer.MIN_VALUE;
+
+	public ColumnWeights(final long minX, final long minY, final int sizeX, final int sizeY, final int numTaps) {
+
+		this.minX = minX;
+		this.minY = minY;
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.numTaps = numTaps;
+
+		offsets = new int[sizeX * sizeY];
+		weights = new double[sizeX * sizeY * numTaps];
+	}
+
+	/**
+	 * Interpolation kernels along z. Tap k of a column with source position
+	 * s reads floor(s) - (numTaps / 2 - 1) + k (nearest neighbor reads
+	 * round(s)).
+	 */
+	public enum Interpolation {
+
+		NEAREST(1),
+		LINEAR(2),
+		/** Keys cubic convolution, a = -0.5 */
+		CUBIC(4),
+		/** Lanczos windowed sinc with a radius of three samples, normalized to sum one */
+		SINC(6);
+
+		public final int numTaps;
+
+		Interpolation(final int numTaps) {
+			this.numTaps = numTaps;
+		}
+
+		public static Interpolation fromString(final String name) {
+			return valueOf(name.trim().toUpperCase(Locale.ROOT));
+		}
+
+		/**
+		 * @param s the source position
+		 * @return the source position of the first tap
+		 */
+		int firstTap(final double s) {
+
+			if (this == NEAREST)
+				return (int)Math.round(s);
+
+			return (int)Math.floor(s) - (numTaps / 2 - 1);
+		}
+
+		/**
+		 * Writes the weights of the taps of a column.
+		 *
+		 * @param s the source position
+		 * @param first the first tap
+		 * @param w the weights
+		 * @param i the index of the first weight of the column
+		 */
+		void weights(final double s, final int first, final double[] w, final int i) {
+
+			switch (this) {
+			case NEAREST:
+				w[i] = 1;
+				break;
+			case LINEAR:
+				w[i] = 1.0 - (s - first);
+				w[i + 1] = s - first;
+				break;
+			case CUBIC:
+				for (int k = 0; k < 4; k++)
+					w[i + k] = cubic(s - first - k);
+				break;
+			case SINC:
+				double sum = 0;
+				for (int k = 0; k < 6; k++) {
+					w[i + k] = lanczos(s - first - k, 3);
+					sum += w[i + k];
+				}
+				for (int k = 0; k < 6; k++)
+					w[i + k] /= sum;
+				break;
+			}
+		}
+
+		private static double cubic(final double x) {
+
+			final double a = -0.5;
+			final double t = Math.abs(x);
+			if (t <= 1)
+				return ((a + 2) * t - (a + 3)) * t * t + 1;
+			if (t < 2)
+				return ((a * t - 5 * a) * t + 8 * a) * t - 4 * a;
+			return 0;
+		}
+
+		private static double lanczos(final double x, final int radius) {
+
+			if (x == 0)
+				return 1;
+			if (Math.abs(x) >= radius)
+				return 0;
+
+			final double px = Math.PI * x;
+			return radius * Math.sin(px) * Math.sin(px / radius) / (px * px);
+		}
+	}
+
+	/**
+	 * Linear interpolation weights (two taps) for the given columns.
+	 *
+	 * @param dz the z-offsets of the correction
+	 * @param minX first column in x
+	 * @param minY first column in y
+	 * @param sizeX number of columns in x
+	 * @param sizeY number of columns in y
+	 * @return the weights
+	 */
+	public static ColumnWeights linear(final ZOffsets dz, final long minX, final long minY, final int sizeX, final int sizeY) {
+
+		return create(Interpolation.LINEAR, dz, minX, minY, sizeX, sizeY);
+	}
+
+	/**
+	 * Interpolation weights for the given columns. The kernel is evaluated
+	 * once per column and reused for every z.
+	 *
+	 * @param interpolation the kernel
+	 * @param dz the z-offsets of the correction
+	 * @param minX first column in x
+	 * @param minY first column in y
+	 * @param sizeX number of columns in x
+	 * @param sizeY number of columns in y
+	 * @return the weights
+	 */
+	public static ColumnWeights create(
+			final Interpolation interpolation,
+			final ZOffsets dz,
+			final long minX,
+			final long minY,
+			final int sizeX,
+			final int sizeY) {
+
+		final int nt = interpolation.numTaps;
+		final ColumnWeights w = new ColumnWeights(minX, minY, sizeX, sizeY, nt);
+		int i = 0;
+		for (int y = 0; y < sizeY; y++) {
+			for (int x = 0; x < sizeX; x++, i++) {
+				final double s = -dz.dz(minX + x, minY + y);
+				final int o = interpolation.firstTap(s);
+				interpolation.weights(s, o, w.weights, nt * i);
+				w.setOffset(i, o);
+			}
+		}
+		return w;
+	}
+
+	public void setOffset(final int column, final int offset) {
+
+		offsets[column] = offset;
+		minOffset = Math.min(minOffset, offset);
+		maxOffset = Math.max(maxOffset, offset);
+	}
+
+	public int numColumns() {
+		return offsets.length;
+	}
+
+	/**
+	 * @return the smallest offset of the first tap over all columns
+	 */
+	public int minOffset() {
+		return minOffset;
+	}
+
+	/**
+	 * @return the largest offset of the last tap over all columns
+	 */
+	public int maxOffset() {
+		return maxOffset + numTaps - 1;
+	}
+
+}
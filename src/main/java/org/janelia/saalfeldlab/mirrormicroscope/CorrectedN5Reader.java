@@ -0,0 +1,359 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+
+/**
+ * A read-only container that serves the field corrected setups of a raw
+ * container without writing them.
+ * <p>
+ * For every setup with a raw dataset, the group given by the output pattern
+ * has a dataset "0" (5d, the raw block size, uncompressed) and the
+ * multiscales metadata on the group. Its blocks are resampled from the raw
+ * data when they are read, and kept in an LRU cache with a byte budget. All
+ * other paths are passed through to the raw container.
+ * <p>
+ * The correction is that of {@link FieldCorrection} with its defaults:
+ * linear interpolation along z over the full input depth, without dark
+ * frame and flat-field correction or registration, and blocks of the raw
+ * block size. Output written with other options differs from what is
+ * served here.
+ */
+public class CorrectedN5Reader implements N5Reader {
+
+	public static final long DEFAULT_CACHE_BYTES = 1L << 30;
+
+	private final N5Reader raw;
+	private final CameraModel cameraModel;
+	private final double radius;
+	private final boolean inverse;
+	private final String inputPattern;
+	private final Pattern outputGroupPattern;
+
+	private final Gson gson = new Gson();
+	private final HashMap<Integer, Setup<?>> setups = new HashMap<>();
+
+	private final long cacheBytes;
+	private long cachedBytes = 0;
+	private final LinkedHashMap<String, CachedBlock> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param raw the raw container
+	 * @param cameraModel the camera model
+	 * @param radius the radius of curvature
+	 * @param inverse whether the distortion is inverted
+	 * @param inputPattern raw dataset of a setup, e.g. "setup%d/timepoint0/s0"
+	 * @param outputPattern corrected group of a setup, e.g. "setup%d"
+	 * @param cacheBytes the maximum size of the cached blocks
+	 */
+	public CorrectedN5Reader(
+			final N5Reader raw,
+			final CameraModel cameraModel,
+			final double radius,
+			final boolean inverse,
+			final String inputPattern,
+			final String outputPattern,
+			final long cacheBytes) {
+
+		this.raw = raw;
+		this.cameraModel = cameraModel;
+		this.radius = radius;
+		this.inverse = inverse;
+		this.inputPattern = inputPattern;
+		this.cacheBytes = cacheBytes;
+
+		final String[] parts = normalize(outputPattern).split("%d", -1);
+		if (parts.length != 2)
+			throw new IllegalArgumentException("output pattern needs exactly one %d: " + outputPattern);
+
+		outputGroupPattern = Pattern.compile(Pattern.quote(parts[0]) + "(\\d+)" + Pattern.quote(parts[1]));
+	}
+
+	public CorrectedN5Reader(final N5Reader raw, final CameraModel cameraModel) {
+
+		this(raw, cameraModel, OpticalModel.R, false, "setup%d/timepoint0/s0", "setup%d", DEFAULT_CACHE_BYTES);
+	}
+
+	private static String normalize(final String path) {
+		return path.replaceAll("^/+|/+$", "").replaceAll("/+", "/");
+	}
+
+	/**
+	 * @return the setup if path is its corrected group, otherwise null
+	 */
+	private Setup<?> group(final String path) {
+
+		final Matcher m = outputGroupPattern.matcher(normalize(path));
+		return m.matches() ? setup(Integer.parseInt(m.group(1))) : null;
+	}
+
+	/**
+	 * @return the setup if path is its corrected dataset, otherwise null
+	 */
+	private Setup<?> dataset(final String path) {
+
+		final String p = normalize(path);
+		return p.endsWith("/0") ? group(p.substring(0, p.length() - 2)) : null;
+	}
+
+	private synchronized Setup<?> setup(final int setupId) {
+
+		if (setups.containsKey(setupId))
+			return setups.get(setupId);
+
+		final String inputDataset = String.format(inputPattern, setupId);
+		final Setup<?> setup = raw.datasetExists(inputDataset) ? createSetup(setupId, inputDataset) : null;
+		setups.put(setupId, setup);
+		return setup;
+	}
+
+	private <T extends NumericType<T> & NativeType<T>> Setup<T> createSetup(final int setupId, final String inputDataset) {
+
+		final DatasetAttributes inputAttributes = raw.getDatasetAttributes(inputDataset);
+		final CachedCellImg<T, ?> rawImg = N5Utils.open(raw, inputDataset);
+		final ZOffsetTable dz = ZOffsetTable.get(
+				cameraModel, cameraModel.setupToCamera(setupId), radius, inverse,
+				rawImg.dimension(0), rawImg.dimension(1));
+
+		final long[] d = inputAttributes.getDimensions();
+		final int[] b = inputAttributes.getBlockSize();
+		final DatasetAttributes attributes = new DatasetAttributes(
+				new long[]{d[0], d[1], d[2], 1, 1},
+				new int[]{b[0], b[1], b[2], 1, 1},
+				inputAttributes.getDataType(),
+				new RawCompression());
+
+		final JsonObject datasetAttributes = new JsonObject();
+		datasetAttributes.add("dimensions", gson.toJsonTree(attributes.getDimensions()));
+		datasetAttributes.add("blockSize", gson.toJsonTree(attributes.getBlockSize()));
+		datasetAttributes.addProperty("dataType", attributes.getDataType().toString());
+
+		return new Setup<>(
+				new ZColumnResampler<>(rawImg, dz),
+				attributes,
+				datasetAttributes,
+				FieldCorrection.buildNgffMeta(cameraModel.rx, cameraModel.ry, cameraModel.rz, new double[][]{{1, 1, 1}}).getAsJsonObject());
+	}
+
+	/**
+	 * @return the attributes of a corrected group or dataset, or null for
+	 *         paths of the raw container
+	 */
+	private JsonObject attributes(final String path) {
+
+		Setup<?> setup = dataset(path);
+		if (setup != null)
+			return setup.datasetAttributes;
+
+		setup = group(path);
+		if (setup != null)
+			return setup.groupAttributes;
+
+		return null;
+	}
+
+	@Override
+	public <T> T getAttribute(final String pathName, final String key, final Class<T> clazz) {
+
+		return getAttribute(pathName, key, (Type)clazz);
+	}
+
+	@Override
+	public <T> T getAttribute(final String pathName, final String key, final Type type) {
+
+		final JsonObject attributes = attributes(pathName);
+		if (attributes == null)
+			return raw.getAttribute(pathName, key, type);
+
+		final JsonElement attribute = attributes.get(key);
+		if (attribute == null) {
+			// corrected groups share their path with raw groups of the default patterns
+			return dataset(pathName) == null && raw.exists(pathName) ? raw.getAttribute(pathName, key, type) : null;
+		}
+		return gson.fromJson(attribute, type);
+	}
+
+	@Override
+	public DatasetAttributes getDatasetAttributes(final String pathName) {
+
+		final Setup<?> setup = dataset(pathName);
+		return setup != null ? setup.attributes : raw.getDatasetAttributes(pathName);
+	}
+
+	@Override
+	public DataBlock<?> readBlock(final String pathName, final DatasetAttributes datasetAttributes, final long... gridPosition) {
+
+		final Setup<?> setup = dataset(pathName);
+		if (setup == null)
+			return raw.readBlock(pathName, datasetAttributes, gridPosition);
+
+		final String key = normalize(pathName) + Arrays.toString(gridPosition);
+		synchronized (cache) {
+			final CachedBlock cached = cache.get(key);
+			if (cached != null) {
+				hits++;
+				return cached.block;
+			}
+			misses++;
+		}
+
+		final DataBlock<?> block = setup.compute(gridPosition);
+		final long size = (long)block.getNumElements() * InputBlockCache.bytesPerElement(setup.attributes.getDataType());
+		synchronized (cache) {
+			final CachedBlock previous = cache.put(key, new CachedBlock(block, size));
+			cachedBytes += size - (previous == null ? 0 : previous.size);
+			while (cachedBytes > cacheBytes && !cache.isEmpty()) {
+				final CachedBlock eldest = cache.remove(cache.keySet().iterator().next());
+				cachedBytes -= eldest.size;
+			}
+		}
+		return block;
+	}
+
+	@Override
+	public boolean exists(final String pathName) {
+
+		return dataset(pathName) != null || group(pathName) != null || raw.exists(pathName);
+	}
+
+	@Override
+	public boolean datasetExists(final String pathName) {
+
+		return dataset(pathName) != null || raw.datasetExists(pathName);
+	}
+
+	@Override
+	public String[] list(final String pathName) {
+
+		if (dataset(pathName) != null)
+			return new String[0];
+
+		final LinkedHashSet<String> children = new LinkedHashSet<>();
+		if (raw.exists(pathName))
+			children.addAll(Arrays.asList(raw.list(pathName)));
+
+		if (group(pathName) != null)
+			children.add("0");
+
+		return children.toArray(new String[0]);
+	}
+
+	@Override
+	public Map<String, Class<?>> listAttributes(final String pathName) {
+
+		final Map<String, Class<?>> keys = new HashMap<>();
+		if (dataset(pathName) == null && raw.exists(pathName))
+			keys.putAll(raw.listAttributes(pathName));
+
+		final JsonObject attributes = attributes(pathName);
+		if (attributes != null)
+			for (final String key : attributes.keySet())
+				keys.put(key, Object.class);
+
+		return keys;
+	}
+
+	@Override
+	public URI getURI() {
+		return raw.getURI();
+	}
+
+	@Override
+	public void close() {
+		raw.close();
+	}
+
+	/**
+	 * @return number of blocks that were served from the cache
+	 */
+	public long getHits() {
+		synchronized (cache) {
+			return hits;
+		}
+	}
+
+	/**
+	 * @return number of blocks that were computed
+	 */
+	public long getMisses() {
+		synchronized (cache) {
+			return misses;
+		}
+	}
+
+	private static class CachedBlock {
+
+		final DataBlock<?> block;
+		final long size;
+
+		CachedBlock(final DataBlock<?> block, final long size) {
+
+			this.block = block;
+			this.size = size;
+		}
+	}
+
+	private static class Setup<T extends NumericType<T> & NativeType<T>> {
+
+		final ZColumnResampler<T> resampler;
+		final DatasetAttributes attributes;
+		final JsonObject datasetAttributes;
+		final JsonObject groupAttributes;
+
+		Setup(final ZColumnResampler<T> resampler, final DatasetAttributes attributes, final JsonObject datasetAttributes, final JsonObject groupAttributes) {
+
+			this.resampler = resampler;
+			this.attributes = attributes;
+			this.datasetAttributes = datasetAttributes;
+			this.groupAttributes = groupAttributes;
+		}
+
+		DataBlock<?> compute(final long[] gridPosition) {
+
+			final long[] dims = attributes.getDimensions();
+			final int[] blockSize = attributes.getBlockSize();
+			final int[] size = new int[5];
+			final long[] min = new long[3];
+			for (int d = 0; d < 5; d++) {
+				size[d] = (int)Math.min(blockSize[d], dims[d] - gridPosition[d] * blockSize[d]);
+				if (d < 3)
+					min[d] = gridPosition[d] * blockSize[d];
+			}
+
+			final ArrayImg<T, ?> img = new ArrayImgFactory<>(resampler.getSource().getType()).create(size[0], size[1], size[2]);
+			resampler.resample(img, min, attributes.getDataType());
+
+			final DataBlock<?> block = attributes.getDataType().createDataBlock(size, gridPosition, size[0] * size[1] * size[2]);
+			final Object data = ((ArrayDataAccess<?>)img.update(null)).getCurrentStorageArray();
+			System.arraycopy(data, 0, block.getData(), 0, block.getNumElements());
+			return block;
+		}
+	}
+
+}
@@ -0,0 +1,225 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Timers and counters for the stages of the field correction.
+ * <p>
+ * Counters are {@link LongAdder}s, so worker and prefetch threads can
+ * record without contention. Stage times are summed over threads, so they
+ * are thread time, not wall time.
+ */
+public class CorrectionStats {
+
+	public enum Stage {
+
+		/** reading and decompressing input blocks */
+		READ,
+		/** copying input blocks into the slab of an output block */
+		FILL,
+		/** resampling the slab into an output block */
+		RESAMPLE,
+		/** compressing and writing output blocks */
+		WRITE,
+		/** downsampling into and writing coarser levels */
+		DOWNSAMPLE
+	}
+
+	private final LongAdder[] nanos = new LongAdder[Stage.values().length];
+	private final LongAdder[] calls = new LongAdder[Stage.values().length];
+	private final LongAdder[] bytes = new LongAdder[Stage.values().length];
+	private final LongAdder[] voxels = new LongAdder[Stage.values().length];
+
+	private final LongAdder blocksDone = new LongAdder();
+	private final LongAdder emptyBlocksSkipped = new LongAdder();
+	private final LongAdder zeroBlocksOmitted = new LongAdder();
+	private final LongAdder numBlocks = new LongAdder();
+	private long startNanos = System.nanoTime();
+
+	private ScheduledExecutorService progress;
+
+	public CorrectionStats() {
+
+		for (int i = 0; i < nanos.length; i++) {
+			nanos[i] = new LongAdder();
+			calls[i] = new LongAdder();
+			bytes[i] = new LongAdder();
+			voxels[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Starts the clock for the throughput and the ETA.
+	 *
+	 * @param numBlocks the number of output blocks of the run, or an
+	 *        estimate that is corrected with {@link #addBlocks}
+	 */
+	public void start(final long numBlocks) {
+
+		this.numBlocks.reset();
+		this.numBlocks.add(numBlocks);
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Corrects the number of output blocks of the run.
+	 *
+	 * @param numBlocks the blocks to add, negative to remove blocks
+	 */
+	public void addBlocks(final long numBlocks) {
+		this.numBlocks.add(numBlocks);
+	}
+
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records one call of a stage that started at {@link #now()}.
+	 */
+	public void record(final Stage stage, final long start, final long numBytes, final long numVoxels) {
+
+		final int i = stage.ordinal();
+		nanos[i].add(System.nanoTime() - start);
+		calls[i].increment();
+		bytes[i].add(numBytes);
+		voxels[i].add(numVoxels);
+	}
+
+	public void blockDone() {
+		blocksDone.increment();
+	}
+
+	/**
+	 * Counts a block that was predicted to be empty and not computed.
+	 */
+	public void emptyBlockSkipped() {
+		emptyBlocksSkipped.increment();
+	}
+
+	/**
+	 * Counts a block that was computed, but not written because it is zero.
+	 */
+	public void zeroBlockOmitted() {
+		zeroBlocksOmitted.increment();
+	}
+
+	/**
+	 * Prints a progress line every interval seconds until {@link #stop()}.
+	 */
+	public void startProgress(final long interval) {
+
+		progress = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread t = new Thread(r, "progress");
+			t.setDaemon(true);
+			return t;
+		});
+		progress.scheduleAtFixedRate(() -> System.out.println(progressLine()), interval, interval, TimeUnit.SECONDS);
+	}
+
+	public void stop() {
+
+		if (progress != null)
+			progress.shutdown();
+	}
+
+	public String progressLine() {
+
+		final long done = blocksDone.sum();
+		final long numBlocks = this.numBlocks.sum();
+		final double seconds = (System.nanoTime() - startNanos) * 1e-9;
+		final double rate = done / seconds;
+		final double eta = rate > 0 ? (numBlocks - done) / rate : Double.NaN;
+		return String.format(Locale.ROOT, "%d / %d blocks (%.1f%%), %.1f blocks/s, %.1f MB/s in, elapsed %s, eta %s",
+				done, numBlocks, numBlocks > 0 ? 100.0 * done / numBlocks : 100.0, rate,
+				bytes[Stage.READ.ordinal()].sum() / seconds / 1e6,
+				duration(seconds), duration(eta));
+	}
+
+	private static String duration(final double seconds) {
+
+		if (Double.isNaN(seconds) || Double.isInfinite(seconds))
+			return "-";
+
+		final long s = Math.round(seconds);
+		return String.format("%d:%02d:%02d", s / 3600, (s / 60) % 60, s % 60);
+	}
+
+	/**
+	 * @return the counters of all stages, and the totals of the run
+	 */
+	public Map<String, Object> summary() {
+
+		final double wallSeconds = (System.nanoTime() - startNanos) * 1e-9;
+		final Map<String, Object> summary = new LinkedHashMap<>();
+		summary.put("blocks", blocksDone.sum());
+		summary.put("wallSeconds", wallSeconds);
+		summary.put("emptyBlocksSkipped", emptyBlocksSkipped.sum());
+		summary.put("zeroBlocksOmitted", zeroBlocksOmitted.sum());
+
+		final Map<String, Object> stages = new LinkedHashMap<>();
+		for (final Stage stage : Stage.values()) {
+			final int i = stage.ordinal();
+			final double seconds = nanos[i].sum() * 1e-9;
+			final Map<String, Object> s = new LinkedHashMap<>();
+			s.put("calls", calls[i].sum());
+			s.put("threadSeconds", seconds);
+			s.put("bytes", bytes[i].sum());
+			s.put("voxels", voxels[i].sum());
+			s.put("megabytesPerThreadSecond", seconds > 0 ? bytes[i].sum() / seconds / 1e6 : 0);
+			s.put("megavoxelsPerThreadSecond", seconds > 0 ? voxels[i].sum() / seconds / 1e6 : 0);
+			stages.put(stage.name().toLowerCase(Locale.ROOT), s);
+		}
+		summary.put("stages", stages);
+		return summary;
+	}
+
+	/**
+	 * Writes the summary as json, or as csv with one line per stage if the
+	 * file name ends with .csv.
+	 */
+	public void writeReport(final File file) throws IOException {
+
+		try (final Writer writer = new FileWriter(file)) {
+			if (file.getName().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+				final double wallSeconds = (System.nanoTime() - startNanos) * 1e-9;
+				writer.write("stage,calls,threadSeconds,bytes,voxels,wallSeconds,blocks,emptyBlocksSkipped,zeroBlocksOmitted\n");
+				for (final Stage stage : Stage.values()) {
+					final int i = stage.ordinal();
+					writer.write(String.format(Locale.ROOT, "%s,%d,%.6f,%d,%d,%.3f,%d,%d,%d\n",
+							stage.name().toLowerCase(Locale.ROOT), calls[i].sum(), nanos[i].sum() * 1e-9,
+							bytes[i].sum(), voxels[i].sum(), wallSeconds, blocksDone.sum(),
+							emptyBlocksSkipped.sum(), zeroBlocksOmitted.sum()));
+				}
+			} else
+				new GsonBuilder().setPrettyPrinting().create().toJson(summary(), writer);
+		}
+	}
+
+	public void print() {
+
+		System.out.println(progressLine());
+		System.out.println("  empty blocks skipped: " + emptyBlocksSkipped.sum());
+		System.out.println("  zero blocks omitted : " + zeroBlocksOmitted.sum());
+		for (final Stage stage : Stage.values()) {
+			final int i = stage.ordinal();
+			final double seconds = nanos[i].sum() * 1e-9;
+			System.out.println(String.format(Locale.ROOT, "  %-10s: %10.2f s, %8d calls, %10.1f MB, %8.1f Mvoxel/s",
+					stage.name().toLowerCase(Locale.ROOT), seconds, calls[i].sum(), bytes[i].sum() / 1e6,
+					seconds > 0 ? voxels[i].sum() / seconds / 1e6 : 0));
+		}
+	}
+
+}
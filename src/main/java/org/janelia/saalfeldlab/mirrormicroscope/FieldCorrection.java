@@ -1,14 +1,26 @@
 package org.janelia.saalfeldlab.mirrormicroscope;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.IntStream;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
-import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.mirrormicroscope.ColumnWeights.Interpolation;
+import org.janelia.saalfeldlab.mirrormicroscope.vis.VisOriginalTiles;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.RawCompression;
 import org.janelia.saalfeldlab.n5.universe.N5Factory;
 
 import com.google.gson.Gson;
@@ -17,16 +29,21 @@ import com.google.gson.JsonElement;
 import bdv.util.BdvFunctions;
 import bdv.util.BdvOptions;
 import bdv.util.BdvStackSource;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.InvertibleRealTransform;
 import net.imglib2.realtransform.InvertibleRealTransformSequence;
-import net.imglib2.realtransform.Translation3D;
 import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.view.Views;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -42,8 +59,10 @@ public class FieldCorrection implements Runnable
 	@Option( names = { "-r", "--root-directory" }, description = "Root directory path", required = true )
 	private String inputRoot;
 
-	@Option( names = { "-s", "--setup-id" }, description = "Setup ID number", required = true )
-	private int setupId;
+	@Option( names = { "-s", "--setup-id" },
+			description = "Setup ID(s) to process. Can provide a single id (7), a comma-separated list (3,4,5,6), or an endpoint-inclusive range (3-6)",
+			required = true )
+	private String setupIdsArg;
 
 	@Option( names = { "-n", "--num-columns" }, description = "Number of columns per camera", required = true )
 	private int columnsPerCamera;
@@ -56,10 +75,13 @@ public class FieldCorrection implements Runnable
 	@Option( names = { "-o", "--output-root" }, description = "Output n5 root", required = false )
 	private String outputRoot;
 	
-	@Option( names = { "-d", "--datset-pattern" }, description = "Dataset pattern, default: (setup\\%d)", required = false )
-	private String datasetPattern = "setup%d/timepoint0/s0";
+	@Option( names = { "-d", "--datset-pattern" }, description = "Dataset pattern, formatted with setup and timepoint, default: (setup\\%d/timepoint\\%d/s0)", required = false )
+	private String datasetPattern = "setup%d/timepoint%d/s0";
 
-	@Option( names = { "-do", "--datset-output-pattern" }, description = "Dataset output pattern, default: (setup\\%d)", required = false )
+	@Option( names = { "--tif-pattern" }, description = "Read uncompressed TIFF or BigTIFF stacks instead of n5 datasets, formatted with setup and timepoint and relative to the root directory, e.g. (setup\\%d_t\\%d.tif)", required = false )
+	private String tifPattern;
+
+	@Option( names = { "-do", "--datset-output-pattern" }, description = "Dataset output pattern, formatted with setup and timepoint, default: (setup\\%d), with a timepoint\\%d group for several timepoints", required = false )
 	private String datasetOutputPattern = "setup%d";
 
 	@Option( names = { "-i", "--inverse" }, fallbackValue = "true", arity = "0..1", description = "Flag to invert distortion transformation.", required = false )
@@ -71,25 +93,135 @@ public class FieldCorrection implements Runnable
 	@Option( names = { "--radius" }, description = "Radius of curvature distortion")
 	private double radius = OpticalModel.R;
 
+	@Option( names = { "--interpolation" }, description = "Interpolation along z: nearest, linear, cubic or sinc, default: linear", required = false )
+	private String interpolationArg = "linear";
+	private Interpolation interpolation = Interpolation.LINEAR;
+
+	@Option( names = { "--tight-z" }, fallbackValue = "true", arity = "0..1", description = "Flag to size the output to the z-range that the corrected data covers instead of the input depth.", required = false )
+	private boolean tightZ = false;
+
+	@Option( names = { "--dark-pattern" }, description = "2d dark frame dataset of a camera, e.g. (camera\\%d/dark), subtracted before the correction", required = false )
+	private String darkPattern;
+
+	@Option( names = { "--flat-pattern" }, description = "2d flat-field dataset of a camera, e.g. (camera\\%d/flat), divided by after the dark frame", required = false )
+	private String flatPattern;
+
+	@Option( names = { "--flat-root" }, description = "Container of the dark frames and flat-fields, default: the input root", required = false )
+	private String flatRoot;
+
+	@Option( names = { "--num-channels" },
+			description = "Number of channels per tile. Consecutive setups of --setup-id are the channels of one tile, and are resampled together with the same weights, default: 1",
+			required = false )
+	private int numChannels = 1;
+
 	@Option( names = { "-j", "--num-jobs" }, description = "Number of threads", required = false )
 	private int nThreads = 1;
 
-	private N5Reader n5r;
-	private N5Writer n5w;
+	@Option( names = { "--prefetch-blocks" }, description = "Number of output blocks whose input is prefetched ahead of the workers, default: 2 * num-jobs", required = false )
+	private Integer prefetchDepthArg;
 
-	private DatasetAttributes inputAttributes;
-	private String inputDatasetPath;
+	@Option( names = { "--prefetch-threads" }, description = "Number of threads reading input blocks ahead of the workers, default: 2", required = false )
+	private int prefetchThreads = 2;
 
-	private int[] activeCameras;
-	private CameraModel cameraModel;
+	@Option( names = { "--output-block-size" },
+			description = "Block size (x,y,z) of the output, default: the input block size, 128,128,64 for TIFF input",
+			required = false )
+	private String outputBlockSizeArg;
 
-	/*
-	 *  camera / imaging parameters
-	 */
-	// pixel dimension
-	long nx;
-	long ny;
-	long nz;
+	@Option( names = { "--write-threads" }, description = "Number of threads that compress and write output blocks behind the workers, default: 0, the workers write", required = false )
+	private int writeThreads = 0;
+
+	@Option( names = { "--write-queue" }, description = "Number of computed output blocks that can wait for a write thread, default: 2 * num-jobs", required = false )
+	private Integer writeQueueArg;
+
+	@Option( names = { "--pool-mb" }, description = "MiB of slabs and output blocks that are kept for reuse on the heap, default: 256", required = false )
+	private long poolMb = 256;
+
+	@Option( names = { "--mmap-input" }, fallbackValue = "true", arity = "0..1",
+			description = "Flag to memory map the chunk files of uncompressed local N5 and Zarr inputs instead of reading them, compressed inputs are read as usual.",
+			required = false )
+	private boolean mmapInput = false;
+
+	@Option( names = { "--input-cache-mb" },
+			description = "Keep decoded input blocks outside of the Java heap, in direct buffers with this budget in MiB (raise -XX:MaxDirectMemorySize to match), default: 0, on the heap",
+			required = false )
+	private long inputCacheMb = 0;
+
+	@Option( names = { "--shard-size" },
+			description = "Write Zarr v3 with shards of this size (x,y,z), a multiple of the output block size, which becomes the inner chunk size. Local output only.",
+			required = false )
+	private String shardSizeArg;
+
+	@Option( names = { "--part-index" },
+			description = "Part of the output blocks that this process writes, for splitting setups between processes on several nodes, from 0 to --num-parts - 1. Part 0 creates the outputs, default: 0",
+			required = false )
+	private int partIndex = 0;
+
+	@Option( names = { "--num-parts" }, description = "Number of processes that write disjoint parts of the output blocks of the same setups, default: 1", required = false )
+	private int numParts = 1;
+
+	@Option( names = { "--work-dir" },
+			description = "Shared directory, e.g. next to the output root, through which any number of processes claim ranges of output blocks. Claimed ranges are recorded as done there instead of in manifests",
+			required = false )
+	private String workDir;
+
+	@Option( names = { "--claim-blocks" }, description = "Number of output blocks claimed at once with --work-dir, default: 64", required = false )
+	private long claimBlocks = 64;
+
+	@Option( names = { "--lease-timeout" }, description = "Seconds after which the claims of a process that stopped renewing them are taken over, default: 600", required = false )
+	private long leaseTimeout = 600;
+
+	@Option( names = { "--num-levels" }, description = "Number of downsampled levels written with the corrected data (factors as in VisOriginalTiles.FACTORS), default: 0", required = false )
+	private int numLevels = 0;
+
+	@Option( names = { "--resume" }, fallbackValue = "true", arity = "0..1", description = "Flag to skip the blocks that a previous run recorded as written.", required = false )
+	private boolean resume = false;
+
+	@Option( names = { "--verify" }, fallbackValue = "true", arity = "0..1", description = "Flag to check that blocks recorded as written exist in the output before resuming.", required = false )
+	private boolean verify = false;
+
+	@Option( names = { "--manifest-dir" }, description = "Directory for the records of written blocks, default: <output-root>/.manifest for local output", required = false )
+	private String manifestDir;
+
+	@Option( names = { "--report" }, description = "File to write stage timings and counters to at exit, csv if it ends with .csv, json otherwise", required = false )
+	private String reportPath;
+
+	@Option( names = { "--progress-interval" }, description = "Seconds between progress lines, 0 for none, default: 0", required = false )
+	private long progressInterval = 0;
+
+	@Option( names = { "--registration-xml" }, description = "BigStitcher xml whose view registrations are applied in the same resampling pass as the correction", required = false )
+	private String registrationXml;
+
+	@Option( names = { "--timepoint" }, description = "Timepoint to process, default: 0", required = false )
+	private int timepoint = 0;
+
+	@Option( names = { "-t", "--timepoints" },
+			description = "Timepoints to process, streamed one after the other. Can provide a comma-separated list (3,4,5,6), or an endpoint-inclusive range (3-6), default: --timepoint",
+			required = false )
+	private String timepointsArg;
+
+	@Option( names = { "--dz-cache-size" }, description = "Number of per-camera z-offset tables to keep in memory (40MB each), default: 4", required = false )
+	private int dzCacheSize = ZOffsetTable.DEFAULT_CACHE_SIZE;
+
+	private static final int[] TIF_OUTPUT_BLOCK_SIZE = {128, 128, 64};
+
+	private N5Reader n5r;
+	private N5Writer n5w;
+	private ZarrShardWriter shardWriter;
+	private WorkClaims claims;
+	private OffHeapCellStore cellStore;
+	private ArrayImgPool pool;
+	private WriteBehind writeBehind;
+
+	private int[] setupIds;
+	private int[] timepoints;
+	private SpimData2 registrations;
+	private N5Reader flatReader;
+	private final HashMap<Integer, FlatField> flatFields = new HashMap<>();
+	// offsets of every setup, reused at all timepoints
+	private final HashMap<Integer, ZOffsetTable> offsetTables = new HashMap<>();
+	private CameraModel cameraModel;
+	private int prefetchDepth;
 
 	public static void main(String[] args) {
 		int exitCode = new CommandLine(new FieldCorrection()).execute(args);
@@ -99,7 +231,18 @@ public class FieldCorrection implements Runnable
 	@Override
 	public void run() {
 
+		try {
+			interpolation = Interpolation.fromString(interpolationArg);
+		} catch (final IllegalArgumentException e) {
+			System.out.println("unknown --interpolation " + interpolationArg + ", use nearest, linear, cubic or sinc");
+			return;
+		}
+
 		cameraModel = CameraModel.fromArgs(columnsPerCamera, activeCamerasArg);
+		setupIds = CameraModel.parseIntegers(setupIdsArg).toArray();
+		timepoints = timepointsArg == null ? new int[]{timepoint} : CameraModel.parseIntegers(timepointsArg).toArray();
+		ZOffsetTable.setCacheSize(dzCacheSize);
+		prefetchDepth = prefetchDepthArg != null ? prefetchDepthArg : 2 * nThreads;
 		process();
 	}
 
@@ -107,54 +250,421 @@ public class FieldCorrection implements Runnable
 
 		System.out.println("Processing application with:");
 		System.out.println("  - Root directory: " + inputRoot);
-		System.out.println("  - Setup ID: " + setupId);
+		System.out.println("  - Setup IDs: " + Arrays.toString(setupIds));
+		System.out.println("  - Timepoints: " + Arrays.toString(timepoints));
 		System.out.println("  - inverse: " + inverse);
 		System.out.println("  - radius: " + radius);
+		System.out.println("  - interpolation: " + interpolationArg);
 
 		System.out.println("");
 		System.out.println("camera y-positions: " + Arrays.toString(cameraModel.yPositionsPhysical));
 
-		RandomAccessibleInterval<T> rawImg = read();
-		RandomAccessibleInterval<T> correctedImg = to5d(runCorrection(rawImg));
+		// one reader for all setups
+		if (tifPattern == null)
+			n5r = new N5Factory().openReader(inputRoot);
+		else if ((darkPattern != null || flatPattern != null) && flatRoot == null) {
+			System.out.println("dark frames and flat-fields of TIFF input need --flat-root");
+			return;
+		}
+
+		if (registrationXml != null) {
+			try {
+				registrations = new XmlIoSpimData2().load(URI.create(registrationXml));
+			} catch (SpimDataException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+
+		if (registrations != null && (interpolation == Interpolation.CUBIC || interpolation == Interpolation.SINC))
+			System.out.println("registered setups are interpolated in 3d, linearly instead of with --interpolation " + interpolationArg);
+
+		if ((darkPattern != null || flatPattern != null) && registrations != null) {
+			System.out.println("dark frame and flat-field correction is not supported with --registration-xml");
+			return;
+		}
+
+		flatReader = flatRoot == null ? n5r : new N5Factory().openReader(flatRoot);
 
 		if (outputRoot != null)
-			write(correctedImg);
+			write();
 		else if (view) {
-			final BdvOptions opts = BdvOptions.options().numRenderingThreads(nThreads);
-			final BdvStackSource<T> bdv = BdvFunctions.show(rawImg, "raw", opts);
-			BdvFunctions.show(correctedImg, "corrected", opts.addTo(bdv));
+			BdvOptions opts = BdvOptions.options().numRenderingThreads(nThreads);
+			for (final SetupCorrection<T> setup : this.<T>prepare(timepoints[0])) {
+				final BdvStackSource<T> bdv = BdvFunctions.show(setup.getRawImg(), "raw " + setup.setupId, opts);
+				opts = opts.addTo(bdv);
+				BdvFunctions.show(setup.getCorrectedImg(), "corrected " + setup.setupId, opts);
+			}
+		}
+	}
+
+	/**
+	 * Opens the input of all setups of a timepoint and sets up their
+	 * correction. The offsets and flat-fields are computed for the first
+	 * timepoint and reused for all others.
+	 *
+	 * @param timepoint the timepoint
+	 * @return the setups
+	 */
+	private <T extends NumericType<T> & NativeType<T>> List<SetupCorrection<T>> prepare(final int timepoint) {
+
+		final List<SetupCorrection<T>> setups = new ArrayList<>();
+		for (final int setupId : setupIds) {
+			final SetupCorrection<T> setup = new SetupCorrection<>(
+					setupId,
+					tifPattern == null ? String.format(datasetPattern, setupId, timepoint) : tifPath(setupId, timepoint),
+					outputGroup(setupId, timepoint));
+
+			final RandomAccessibleInterval<T> rawImg;
+			if (tifPattern != null) {
+				try {
+					rawImg = setup.open(new TiffStack(tifPath(setupId, timepoint)));
+				} catch (final IOException e) {
+					throw new RuntimeException(e);
+				}
+			} else
+				rawImg = setup.open(n5r);
+
+			// TIFF strips are always mapped
+			if (tifPattern == null)
+				setup.getInputCache().setStore(cellStore);
+			if (mmapInput && tifPattern == null) {
+				final String inputDataset = String.format(datasetPattern, setupId, timepoint);
+				final ChunkMapper mapper = N5ChunkMapper.open(inputRoot, inputDataset, setup.getInputAttributes());
+				if (mapper == null)
+					System.out.println(inputDataset + " can not be memory mapped, reading it");
+
+				setup.getInputCache().setMapper(mapper);
+			}
+			setup.setPool(pool);
+			setup.setWriteBehind(writeBehind);
+			if (registrations != null) {
+				final ViewRegistration vr = registrations.getViewRegistrations().getViewRegistration(new ViewId(timepoint, setupId));
+				vr.updateModel();
+				final double[] offset = new double[3];
+				setup.setCorrectedImg(to5d(registeredCorrection(setupId, rawImg, vr.getModel(), offset)));
+				setup.setOutputOffset(offset);
+			} else if (tightZ) {
+				final long[] rangeZ = dataRangeZ(setupId, rawImg);
+				final long[] dimensions = rawImg.dimensionsAsLongArray();
+				dimensions[2] = rangeZ[1] - rangeZ[0] + 1;
+				final ZColumnResampler<T> resampler = correctionResampler(setupId, rawImg, rangeZ[0]);
+				setup.setResampler(resampler);
+				setup.setCorrectedImg(to5d(resampler.view(dimensions, outputBlockSize(setup))));
+				setup.setOutputOffset(new double[]{0, 0, rangeZ[0] * cameraModel.rz});
+			} else {
+				final ZColumnResampler<T> resampler = correctionResampler(setupId, rawImg);
+				setup.setResampler(resampler);
+				setup.setCorrectedImg(to5d(resampler.view(outputBlockSize(setup))));
+			}
+
+			if (darkPattern != null || flatPattern != null) {
+				// shared by the setups of a camera
+				final int cameraId = cameraModel.setupToCamera(setupId);
+				FlatField flatField = flatFields.get(cameraId);
+				if (flatField == null) {
+					flatField = FlatField.load(flatReader,
+							darkPattern == null ? null : String.format(darkPattern, cameraId),
+							flatPattern == null ? null : String.format(flatPattern, cameraId));
+					flatFields.put(cameraId, flatField);
+				}
+				setup.setFlatField(flatField);
+			}
+			setups.add(setup);
+		}
+		return setups;
+	}
+
+	/**
+	 * The output group of a setup at a timepoint. Output patterns with a
+	 * single %d get a "timepoint" group per timepoint if there are several.
+	 */
+	private String outputGroup(final int setupId, final int timepoint) {
+
+		final String group = String.format(datasetOutputPattern, setupId, timepoint);
+		if (timepoints.length > 1 && datasetOutputPattern.split("%d", -1).length < 3)
+			return group + "/timepoint" + timepoint;
+
+		return group;
+	}
+
+	/**
+	 * The TIFF stack of a setup at a timepoint, relative paths are resolved
+	 * against the root directory.
+	 */
+	private String tifPath(final int setupId, final int timepoint) {
+
+		final String name = String.format(tifPattern, setupId, timepoint);
+		if (new File(name).isAbsolute())
+			return name;
+
+		return new File(inputRoot.replaceFirst("^file:(//)?", ""), name).getPath();
+	}
+
+	/**
+	 * Creates the output of the setups of a timepoint and opens their
+	 * manifests.
+	 */
+	private <T extends NumericType<T> & NativeType<T>> void createOutputs(final List<SetupCorrection<T>> setups, final CorrectionStats stats) {
+
+		// s0 and the downsampled levels are written in one pass
+		final double[][] factors = Arrays.copyOf(VisOriginalTiles.FACTORS, Math.min(numLevels + 1, VisOriginalTiles.FACTORS.length));
+		for (final SetupCorrection<T> setup : setups) {
+			final JsonElement ngffMeta = registrations == null
+					? buildNgffMeta(cameraModel.rx, cameraModel.ry, cameraModel.rz, factors,
+							setup.getOutputOffset() == null ? new double[3] : setup.getOutputOffset())
+					// registered output is in world coordinates
+					: buildNgffMeta(1, 1, 1, factors, setup.getOutputOffset());
+
+			final int[] blockSize = to5d(outputBlockSize(setup));
+			final int[] shardSize = shardWriter == null ? null : to5d(shardSize(blockSize));
+			setup.setPart(partIndex, numParts);
+			WorkClaims.Claim creation = null;
+			if (claims != null) {
+				try {
+					creation = claims.awaitCreation(setup.getOutputDataset(),
+							WorkClaims.layout(setup.getCorrectedImg().dimensionsAsLongArray(), shardSize == null ? blockSize : shardSize));
+				} catch (final IOException e) {
+					throw new RuntimeException(e);
+				}
+				setup.setCreatesOutput(creation != null);
+			}
+			if (shardWriter != null) {
+				try {
+					setup.createShardedOutput(shardWriter, shardSize, blockSize, ngffMeta);
+				} catch (final IOException e) {
+					throw new RuntimeException(e);
+				}
+			} else
+				setup.createOutput(n5w, blockSize, factors, ngffMeta);
+
+			// other processes wait for this before they use the output
+			if (creation != null)
+				creation.done();
+
+			setup.setStats(stats);
+		}
+
+		// record written blocks so that an interrupted run can be resumed
+		final File manifestRoot = manifestDirectory();
+		if (manifestRoot != null && claims == null) {
+			try {
+				for (final SetupCorrection<T> setup : setups)
+					setup.openManifests(manifestRoot, resume, verify);
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Groups consecutive setups into the channels of a tile. The first
+	 * channel of a group computes the weights and writes the blocks of all
+	 * channels. Channels of a different camera or output size are corrected
+	 * by themselves.
+	 *
+	 * @param setups the setups with their output
+	 * @return the setups to queue
+	 */
+	private <T extends NumericType<T> & NativeType<T>> List<SetupCorrection<T>> groupChannels(final List<SetupCorrection<T>> setups) {
+
+		if (numChannels <= 1 || registrations != null)
+			return setups;
+
+		final List<SetupCorrection<T>> queued = new ArrayList<>();
+		for (int i = 0; i < setups.size(); i += numChannels) {
+			final SetupCorrection<T> first = setups.get(i);
+			queued.add(first);
+			for (int c = i + 1; c < Math.min(i + numChannels, setups.size()); c++) {
+				final SetupCorrection<T> channel = setups.get(c);
+				if (cameraModel.setupToCamera(channel.setupId) == cameraModel.setupToCamera(first.setupId)
+						&& Arrays.equals(channel.getGrid().getDimensions(), first.getGrid().getDimensions())
+						&& Arrays.equals(channel.getGrid().getBlockSize(), first.getGrid().getBlockSize())) {
+					first.addChannel(channel);
+				} else {
+					System.out.println("setup " + channel.setupId + " does not match the tile of setup " + first.setupId + ", correcting it by itself");
+					queued.add(channel);
+				}
+			}
 		}
+		return queued;
 	}
 
-	private <T extends NumericType<T> & NativeType<T>> RandomAccessibleInterval<T> read() {
+	/**
+	 * @return the 3d output block size of a setup
+	 */
+	private int[] outputBlockSize(final SetupCorrection<?> setup) {
+
+		// the chunks of a TIFF stack are whole planes
+		if (outputBlockSizeArg == null && tifPattern != null)
+			return TIF_OUTPUT_BLOCK_SIZE.clone();
 
-		n5r = new N5Factory().openReader(inputRoot);
-		inputDatasetPath = String.format(datasetPattern, setupId);
+		if (outputBlockSizeArg == null)
+			return setup.getInputAttributes().getBlockSize();
 
-		inputAttributes = n5r.getDatasetAttributes(inputDatasetPath);
-		final CachedCellImg<T, ?> img = N5Utils.open(n5r, inputDatasetPath);
-		nx = img.dimension(0);
-		ny = img.dimension(1);
-		nz = img.dimension(2);
+		return Arrays.stream(outputBlockSizeArg.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+	}
+
+	/**
+	 * @return the shard size, rounded up to a multiple of the block size
+	 */
+	private int[] shardSize(final int[] blockSize) {
+
+		final int[] shardSize = Arrays.stream(shardSizeArg.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+		for (int d = 0; d < 3; d++)
+			shardSize[d] = (shardSize[d] + blockSize[d] - 1) / blockSize[d] * blockSize[d];
 
-		return img;
+		return shardSize;
 	}
 
-	private <T extends NumericType<T> & NativeType<T>> void write(RandomAccessibleInterval<T> img) {
+	private <T extends NumericType<T> & NativeType<T>> void write() {
+
+		if (partIndex < 0 || partIndex >= numParts) {
+			System.out.println("--part-index has to be in [0, " + (numParts - 1) + "]");
+			return;
+		}
+		if (numParts > 1 && numLevels > 0) {
+			// downsampled blocks would span parts
+			System.out.println("parts are written without downsampled levels, use --num-levels 0");
+			return;
+		}
+		if (workDir != null) {
+			if (numParts > 1 || numLevels > 0) {
+				System.out.println("--work-dir can not be combined with --num-parts or --num-levels");
+				return;
+			}
+			if (leaseTimeout <= 0) {
+				System.out.println("--lease-timeout has to be positive");
+				return;
+			}
+			claims = new WorkClaims(workDir, leaseTimeout * 1000);
+			if (writeThreads > 0) {
+				// a range is marked done when its blocks were handed back
+				System.out.println("--work-dir writes blocks on the workers, ignoring --write-threads");
+				writeThreads = 0;
+			}
+		}
+
+		if (shardSizeArg != null) {
+			if (outputRoot.contains("://") && !outputRoot.startsWith("file:")) {
+				System.out.println("sharded output is only written to a local file system");
+				return;
+			}
+			if (numLevels > 0) {
+				System.out.println("sharded output is written without downsampled levels, use --num-levels 0");
+				return;
+			}
+			if (verify) {
+				System.out.println("--verify only checks unsharded output, resuming without it");
+				verify = false;
+			}
+			// gzip for compressed input, raw for raw input
+			shardWriter = new ZarrShardWriter(outputRoot, n5r == null || n5r.getDatasetAttributes(String.format(datasetPattern, setupIds[0], timepoints[0])).getCompression() instanceof RawCompression ? -1 : 6);
+		} else
+			n5w = new N5Factory()
+					.zarrDimensionSeparator("/")
+					.openWriter( outputRoot );
+
+		if (manifestDirectory() == null && resume)
+			System.out.println("no manifest directory for " + outputRoot + ", use --manifest-dir to resume");
+
+		// one set of stage counters for all setups and threads
+		final CorrectionStats stats = new CorrectionStats();
+
+		// one budget for the input of all setups
+		if (inputCacheMb > 0)
+			cellStore = new OffHeapCellStore(inputCacheMb << 20);
+
+		// slabs and blocks in flight are recycled
+		final int writeQueue = writeQueueArg == null ? 2 * nThreads : writeQueueArg;
+		if (writeThreads > 0)
+			writeBehind = new WriteBehind(writeThreads, writeQueue);
+		pool = new ArrayImgPool(2 * nThreads + (writeThreads > 0 ? writeThreads + writeQueue : 0), poolMb << 20);
+
+		// the first timepoint is set up now, each of the others in the
+		// background while the timepoint before it is written, so that the
+		// workers do not wait for opening inputs and creating outputs
+		final List<SetupCorrection<T>> allSetups = Collections.synchronizedList(new ArrayList<>());
+		final List<SetupCorrection<T>> first = prepare(timepoints[0]);
+		try {
+			createOutputs(first, stats);
+		} catch (final IllegalArgumentException e) {
+			System.out.println(e.getMessage() + ", adjust --output-block-size" + (shardWriter != null ? " or --shard-size" : ""));
+			if (writeBehind != null)
+				writeBehind.close();
+			if (claims != null)
+				claims.close();
+			for (final SetupCorrection<T> setup : first)
+				setup.close();
+			return;
+		}
+		allSetups.addAll(first);
+		final List<SetupCorrection<T>> firstQueued = groupChannels(first);
+		long blocksPerTimepoint = 0;
+		for (final SetupCorrection<T> setup : firstQueued)
+			blocksPerTimepoint += setup.numBlocks();
 
-		n5w = new N5Factory()
-				.zarrDimensionSeparator("/")
-				.openWriter( outputRoot );
+		// until a timepoint is set up, its blocks are estimated from the first
+		final long estimate = blocksPerTimepoint;
+		final Iterator<Supplier<List<SetupCorrection<T>>>> next = new Iterator<Supplier<List<SetupCorrection<T>>>>() {
+
+			private int i = 1;
+
+			@Override
+			public boolean hasNext() {
+				return i < timepoints.length;
+			}
+
+			@Override
+			public Supplier<List<SetupCorrection<T>>> next() {
+
+				final int t = timepoints[i++];
+				return () -> {
+					System.out.println("setting up timepoint " + t);
+					final List<SetupCorrection<T>> setups = prepare(t);
+					createOutputs(setups, stats);
+					allSetups.addAll(setups);
+					final List<SetupCorrection<T>> queued = groupChannels(setups);
+					long numBlocks = 0;
+					for (final SetupCorrection<T> setup : queued)
+						numBlocks += setup.numBlocks();
+
+					stats.addBlocks(numBlocks - estimate);
+					return queued;
+				};
+			}
+		};
+
+		stats.start(blocksPerTimepoint * timepoints.length);
+		if (progressInterval > 0)
+			stats.startProgress(progressInterval);
+
+		System.out.println("writing " + blocksPerTimepoint + " blocks of " + first.size() + " setups at the first of " + timepoints.length + " timepoints");
+
+		// input blocks are prefetched on their own threads
+		final ExecutorService prefetchExec = prefetchDepth > 0 ? Executors.newFixedThreadPool( prefetchThreads ) : null;
+		final BlockQueue queue = new BlockQueue(firstQueued, next, prefetchExec, prefetchDepth);
+		if (claims != null)
+			queue.setClaims(claims, claimBlocks);
+
+		if (claims != null)
+			System.out.println("sharing them in ranges of " + claimBlocks + " blocks through " + workDir);
+		if (numChannels > 1 && registrations != null)
+			System.out.println("registered setups are corrected channel by channel");
 
-		final String baseDset = String.format( datasetOutputPattern, setupId );
-		// bigstitcher needs the array for an ome-zarr dataset to be "/0"
-		final String arrayDset = baseDset + "/0";
 		if ( nThreads == 1 )
-			N5Utils.save( img, n5w, arrayDset, to5d(inputAttributes.getBlockSize()), inputAttributes.getCompression() );
-		else
+			queue.drain();
+		else {
+			// one pool and one queue for the blocks of all setups
+			final ExecutorService exec = Executors.newFixedThreadPool( nThreads );
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < nThreads; i++)
+				futures.add(exec.submit(queue::drain));
+
 			try
 			{
-				N5Utils.save( img, n5w, arrayDset, to5d(inputAttributes.getBlockSize()), inputAttributes.getCompression(), Executors.newFixedThreadPool( nThreads ) );
+				for (final Future<?> f : futures)
+					f.get();
 			}
 			catch ( InterruptedException e )
 			{
@@ -164,37 +674,191 @@ public class FieldCorrection implements Runnable
 			{
 				e.printStackTrace();
 			}
+			exec.shutdown();
+		}
+
+		if (prefetchExec != null)
+			prefetchExec.shutdown();
+
+		if (writeBehind != null)
+			writeBehind.close();
+
+		if (claims != null)
+			claims.close();
+
+		for (final SetupCorrection<T> setup : allSetups)
+			setup.close();
+
+		stats.stop();
+		stats.print();
+		if (reportPath != null) {
+			try {
+				stats.writeReport(new File(reportPath));
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
 
-		// set metadata
-		n5w.setAttribute(baseDset, "/", buildNgffMeta(cameraModel.rx, cameraModel.ry, cameraModel.rz));
+		long reads = 0, distinct = 0, hits = 0, misses = 0, bytes = 0, pending = 0;
+		for (final SetupCorrection<T> setup : allSetups) {
+			if (setup.getPyramid() != null)
+				pending = Math.max(pending, setup.getPyramid().getPeakPendingBytes());
+
+			final InputBlockCache cache = setup.getInputCache();
+			reads += cache.getReads();
+			distinct += cache.getDistinctBlocks();
+			hits += cache.getHits();
+			misses += cache.getMisses();
+			bytes += cache.getBytesRead();
+		}
+		System.out.println("input blocks read    : " + reads + " (" + distinct + " distinct)");
+		System.out.println("input cache hits     : " + hits);
+		System.out.println("input cache misses   : " + misses);
+		System.out.println("input bytes read     : " + bytes);
+		if (numLevels > 0)
+			System.out.println("pending pyramid bytes: " + pending + " at most per setup");
+		System.out.println("pooled arrays        : " + pool.getAllocations() + " allocated, " + pool.getReuses() + " reused");
+		if (cellStore != null) {
+			System.out.println("off-heap peak bytes  : " + cellStore.getPeak());
+			System.out.println("off-heap evictions   : " + cellStore.getEvictions());
+			System.out.println("off-heap buffers     : " + cellStore.getAllocations() + " allocated, " + cellStore.getReuses() + " reused");
+		}
 	}
 	
+	private File manifestDirectory() {
+
+		if (manifestDir != null)
+			return new File(manifestDir);
+
+		// only local output has a place for the manifests by default
+		if (outputRoot.contains("://") && !outputRoot.startsWith("file:"))
+			return null;
+
+		return new File(outputRoot.replaceFirst("^file:(//)?", ""), ".manifest");
+	}
+
 	public CameraModel getCameraModel() {
 		return cameraModel;
 	}
 
-	public < T extends NumericType< T > & NativeType< T > > RandomAccessibleInterval< T > runCorrection( RandomAccessibleInterval< T > rawImg) {
+	public < T extends NumericType< T > & NativeType< T > > RandomAccessibleInterval< T > runCorrection( int setupId, RandomAccessibleInterval< T > rawImg, int[] blockSize ) {
+
+		return correctionResampler( setupId, rawImg ).view( blockSize );
+	}
+
+	public < T extends NumericType< T > & NativeType< T > > ZColumnResampler< T > correctionResampler( int setupId, RandomAccessibleInterval< T > rawImg ) {
 
 		final int cameraId = cameraModel.setupToCamera(setupId);
         System.out.println( "  setupId     : " + setupId);
 		System.out.println( "  camera id   : " + cameraId);
 		System.out.println( "  tlation (um): " + Arrays.toString(cameraModel.position(cameraId)));
 
-		final InvertibleRealTransformSequence totalDistortion = totalDistortionCorrectionTransform( setupId );
-		final double[] minMax = Normalization.minMaxOffsetsCorners( totalDistortion, rawImg );
+		// shared by all setups of this camera
+		final ZOffsetTable dz = offsetTable( setupId, rawImg );
+		final double[] minMax = dz.getMinMaxCorners();
 		System.out.println( "  min offset: " + minMax[ 0 ] );
 		System.out.println( "  max offset: " + minMax[ 1 ] );
+		System.out.println( "  min offset: " + ( minMax[ 0 ] + dz.getNormalizationOffset() ) );
+		System.out.println( "  max offset: " + ( minMax[ 1 ] + dz.getNormalizationOffset() ) );
+
+		// the distortion only shifts z, so interpolate along z per (x,y) column
+		return new ZColumnResampler<>( rawImg, dz, interpolation );
+	}
+
+	/**
+	 * The offsets of a setup. Kept for all timepoints, so they do not depend
+	 * on the size of the table cache.
+	 */
+	private synchronized ZOffsetTable offsetTable( int setupId, RandomAccessibleInterval< ? > rawImg ) {
+
+		ZOffsetTable dz = offsetTables.get( setupId );
+		if ( dz == null || dz.width != rawImg.dimension( 0 ) || dz.height != rawImg.dimension( 1 ) ) {
+			dz = ZOffsetTable.get( cameraModel, cameraModel.setupToCamera( setupId ), radius, inverse, rawImg.dimension( 0 ), rawImg.dimension( 1 ) );
+			offsetTables.put( setupId, dz );
+		}
+		return dz;
+	}
+
+	/**
+	 * As {@link #correctionResampler(int, RandomAccessibleInterval)}, with
+	 * output z starting at corrected z minZ.
+	 */
+	public < T extends NumericType< T > & NativeType< T > > ZColumnResampler< T > correctionResampler( int setupId, RandomAccessibleInterval< T > rawImg, long minZ ) {
+
+		final ZColumnResampler< T > resampler = correctionResampler( setupId, rawImg );
+		final ZOffsets dz = resampler.getOffsets();
+		return new ZColumnResampler<>( rawImg, ( x, y ) -> dz.dz( x, y ) - minZ, resampler.getInterpolation() );
+	}
+
+	/**
+	 * The range of corrected z that holds data of a setup, from the exact
+	 * extrema of its offsets over the sensor.
+	 *
+	 * @return min and max corrected z
+	 */
+	public < T extends NumericType< T > & NativeType< T > > long[] dataRangeZ( int setupId, RandomAccessibleInterval< T > rawImg ) {
 
-		addNormalizationOffset(totalDistortion, minMax);
-		final double[] minMaxAfter = Normalization.minMaxOffsetsCorners( totalDistortion, rawImg );
-		System.out.println( "  min offset: " + minMaxAfter[ 0 ] );
-		System.out.println( "  max offset: " + minMaxAfter[ 1 ] );
+		final ZOffsetTable dz = offsetTable( setupId, rawImg );
+		final double[] minMax = dz.getMinMax();
+		final long[] rangeZ = ZColumnResampler.dataRangeZ( interpolation, minMax[ 0 ], minMax[ 1 ], rawImg.dimension( 2 ) );
+		System.out.println( "  output z    : " + rangeZ[ 0 ] + " - " + rangeZ[ 1 ] + " (input depth " + rawImg.dimension( 2 ) + ")" );
+		return rangeZ;
+	}
 
-		return Views.interval( 
-			Views.raster( RealViews.transform( 
-				Views.interpolate( Views.extendZero(rawImg), new NLinearInterpolatorFactory<>()),
-				totalDistortion)),
-			rawImg);
+	/**
+	 * The distortion corrected and registered image of a setup, with a single
+	 * interpolation of the raw data.
+	 * <p>
+	 * The correction moves raw z by at most the extrema of its offsets, so
+	 * the registered image of the box spanned by those extrema bounds the
+	 * output. Nearest neighbor interpolation is kept, all other
+	 * interpolations are linear.
+	 *
+	 * @param setupId the setup
+	 * @param rawImg the raw image
+	 * @param registration the view registration, from corrected pixel to world coordinates
+	 * @param offset receives the world coordinates of the first voxel of the output
+	 * @return the zero-min output in world coordinates
+	 */
+	public < T extends NumericType< T > & NativeType< T > > RandomAccessibleInterval< T > registeredCorrection(
+			int setupId, RandomAccessibleInterval< T > rawImg, AffineTransform3D registration, double[] offset ) {
+
+		final ZOffsetTable dz = offsetTable( setupId, rawImg );
+		final double[] minMax = dz.getMinMax();
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		final double[] lo = new double[]{ 0, 0, minMax[ 0 ] };
+		final double[] hi = new double[]{ rawImg.dimension( 0 ) - 1, rawImg.dimension( 1 ) - 1, rawImg.dimension( 2 ) - 1 + minMax[ 1 ] };
+		final double[] corner = new double[ 3 ];
+		final double[] world = new double[ 3 ];
+		Arrays.fill( min, Long.MAX_VALUE );
+		Arrays.fill( max, Long.MIN_VALUE );
+		for ( int i = 0; i < 8; i++ ) {
+			for ( int d = 0; d < 3; d++ )
+				corner[ d ] = ( ( i >> d ) & 1 ) == 0 ? lo[ d ] : hi[ d ];
+
+			registration.apply( corner, world );
+			for ( int d = 0; d < 3; d++ ) {
+				min[ d ] = Math.min( min[ d ], (long)Math.floor( world[ d ] ) );
+				max[ d ] = Math.max( max[ d ], (long)Math.ceil( world[ d ] ) );
+			}
+		}
+		for ( int d = 0; d < 3; d++ )
+			offset[ d ] = min[ d ];
+
+		System.out.println( "  setupId     : " + setupId );
+		System.out.println( "  registered  : " + Arrays.toString( min ) + " - " + Arrays.toString( max ) );
+
+		// raw -> corrected -> world, interpolated once
+		final InvertibleRealTransformSequence transform = concatenate( new ZShiftTransform( dz ), registration );
+		return Views.zeroMin( Views.interval(
+				Views.raster( RealViews.transform(
+						interpolation == Interpolation.NEAREST
+						? Views.interpolate( Views.extendZero( rawImg ), new NearestNeighborInterpolatorFactory<>() )
+						: Views.interpolate( Views.extendZero( rawImg ), new NLinearInterpolatorFactory<>() ),
+						transform ) ),
+				min, max ) );
 	}
 
 	public <T extends NumericType<T> & NativeType<T>> RandomAccessibleInterval<T> to5d(RandomAccessibleInterval<T> img) {
@@ -205,14 +869,6 @@ public class FieldCorrection implements Runnable
 		return new int[]{blkSize[0], blkSize[1], blkSize[2], 1, 1};
 	}
 
-	private void addNormalizationOffset( InvertibleRealTransformSequence totalDistortion, double[] minMax ) {
-        final double min = minMax[0];
-        final double max = minMax[1];
-//        final double d = Math.abs( min ) > Math.abs( max ) ? max : min;
-        final double d = (min + max) / 2.0;
-		totalDistortion.add( new Translation3D(new double[] {0, 0, -d}) );
-	}
-
 	/**
 	 * Returns a transformation that corrects distortion.
 	 * <p>.
@@ -225,12 +881,9 @@ public class FieldCorrection implements Runnable
 	 * 
 	 * @return
 	 */
-	public InvertibleRealTransformSequence totalDistortionCorrectionTransform(int setupId) {
+	public MirrorCorrectionTransform totalDistortionCorrectionTransform(int setupId) {
 		final int cameraId = cameraModel.setupToCamera(setupId);
-		return concatenate( 
-				cameraModel.cameraToImage(cameraId),
-				new OpticalModel(radius).distortionTransform(inverse),
-				cameraModel.imageToCamera(cameraId));
+		return new MirrorCorrectionTransform(cameraModel, cameraId, radius, inverse);
 	}
 
 	public static InvertibleRealTransformSequence concatenate( InvertibleRealTransform... transforms) {
@@ -242,9 +895,38 @@ public class FieldCorrection implements Runnable
 		return renderingTransform;
 	}
 
-	private static JsonElement buildNgffMeta(double rx, double ry, double rz) {
+	/**
+	 * Multiscales metadata for levels "0", "1", ... downsampled by averaging
+	 * with the given factors, so each level is offset by half of its factor
+	 * minus one level 0 voxel.
+	 */
+	public static JsonElement buildNgffMeta(double rx, double ry, double rz, double[][] factors) {
+		return buildNgffMeta(rx, ry, rz, factors, new double[3]);
+	}
+
+	/**
+	 * As {@link #buildNgffMeta(double, double, double, double[][])}, with the
+	 * first voxel of level 0 at offset (x,y,z).
+	 */
+	public static JsonElement buildNgffMeta(double rx, double ry, double rz, double[][] factors, double[] offset) {
 		Gson gson = new Gson();
-		String s = String.format("{\n"
+		final StringBuilder datasets = new StringBuilder();
+		for (int l = 0; l < factors.length; l++) {
+			final double[] f = factors[l];
+			datasets.append(String.format(Locale.ROOT, "        {\n"
+				+ "          \"path\": \"%d\",\n"
+				+ "          \"coordinateTransformations\": [\n"
+				+ "            { \"scale\": [ 1, 1, %f, %f, %f ], \"type\": \"scale\" },\n"
+				+ "            { \"translation\": [ 0, 0, %f, %f, %f ], \"type\": \"translation\" }\n"
+				+ "          ]\n"
+				+ "        }%s\n",
+				l,
+				rz * f[2], ry * f[1], rx * f[0],
+				offset[2] + rz * (f[2] - 1) / 2, offset[1] + ry * (f[1] - 1) / 2, offset[0] + rx * (f[0] - 1) / 2,
+				l < factors.length - 1 ? "," : ""));
+		}
+
+		String s = "{\n"
 				+ "  \"multiscales\": [\n"
 				+ "    {\n"
 				+ "      \"name\": \"\",\n"
@@ -258,19 +940,12 @@ public class FieldCorrection implements Runnable
 				+ "        { \"type\": \"space\", \"name\": \"x\", \"unit\": \"pixel\" }\n"
 				+ "      ],\n"
 				+ "      \"datasets\": [\n"
-				+ "        {\n"
-				+ "          \"path\": \"0\",\n"
-				+ "          \"coordinateTransformations\": [\n"
-				+ "            { \"scale\": [ 1, 1, %f, %f, %f ], \"type\": \"scale\" },\n"
-				+ "            { \"translation\": [ 0, 0, 0, 0, 0 ], \"type\": \"translation\" }\n"
-				+ "          ]\n"
-				+ "        }\n"
+				+ datasets
 				+ "      ],\n"
 				+ "      \"coordinateTransformations\": []\n"
 				+ "    }\n"
 				+ "  ]\n"
-				+ "}\n",
-				rz, ry, rx);
+				+ "}\n";
 
 		return gson.fromJson(s, JsonElement.class);
 	}
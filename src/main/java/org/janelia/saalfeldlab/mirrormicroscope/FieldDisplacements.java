@@ -17,7 +17,6 @@ import net.imglib2.loops.LoopBuilder;
 import net.imglib2.position.FunctionRandomAccessible;
 import net.imglib2.realtransform.InvertibleRealTransform;
 import net.imglib2.realtransform.InvertibleRealTransformSequence;
-import net.imglib2.realtransform.Translation3D;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.fluent.RandomAccessibleIntervalView;
@@ -44,6 +43,9 @@ public class FieldDisplacements implements Runnable {
 	@Option( names = { "-i", "--inverse" }, fallbackValue = "true", arity = "0..1", description = "Flag to invert distortion transformation.", required = false )
 	private boolean inverse = false;
 
+	@Option( names = { "--setup-camera" }, fallbackValue = "true", arity = "0..1", description = "Flag to use the camera of the setup and --inverse like FieldCorrection, instead of the camera numbered like the setup and the forward distortion.", required = false )
+	private boolean setupCamera = false;
+
 	/*
 	 *  camera / imaging parameters
 	 */
@@ -106,25 +108,23 @@ public class FieldDisplacements implements Runnable {
 	public RandomAccessibleInterval< DoubleType > displacements( final Interval interval )
 	{
         System.out.println( "  setupId     : " + setupId);
-		System.out.println( "  camera id   : " + cameraModel.setupToCamera(setupId));
-		System.out.println( "  tlation (um): " + Arrays.toString(cameraModel.position(setupId)));
+		System.out.println( "  camera id   : " + cameraId(setupId));
+		System.out.println( "  tlation (um): " + Arrays.toString(cameraModel.position(cameraId(setupId))));
 
-		final InvertibleRealTransformSequence totalDistortion = totalDistortionCorrectionTransform( setupId );
-		final double[] minMax = computeMinMaxOffsets( totalDistortion, interval );
+		final MirrorCorrectionTransform distortion = totalDistortionCorrectionTransform( setupId );
+		final double[] minMax = computeMinMaxOffsets( distortion, interval );
 		System.out.println( "  min offset: " + minMax[ 0 ] );
 		System.out.println( "  max offset: " + minMax[ 1 ] );
 
-		addNormalizationOffset(totalDistortion, minMax);
+		final MirrorCorrectionTransform totalDistortion = addNormalizationOffset(distortion, minMax);
 		final double[] minMaxAfter = computeMinMaxOffsets( totalDistortion, interval );
 		System.out.println( "  min offset: " + minMaxAfter[ 0 ] );
 		System.out.println( "  max offset: " + minMaxAfter[ 1 ] );
 
-		final RealPoint y = new RealPoint(3);
 		final FunctionRandomAccessible<DoubleType> ra = new FunctionRandomAccessible<>(
 			3,
 			(p,v) -> {
-				totalDistortion.apply(p, y);
-				v.set(y.getDoublePosition(2) - p.getDoublePosition(2));
+				v.set(totalDistortion.dz(p.getDoublePosition(0), p.getDoublePosition(1)));
 			},
 			DoubleType::new);
 
@@ -136,13 +136,13 @@ public class FieldDisplacements implements Runnable {
 		return zDisplacements;
 	}
 
-	private void addNormalizationOffset( InvertibleRealTransformSequence totalDistortion, double[] minMax ) {
+	private MirrorCorrectionTransform addNormalizationOffset( MirrorCorrectionTransform totalDistortion, double[] minMax ) {
         final double min = minMax[0];
         final double max = minMax[1];
 //        final double d = Math.abs( min ) > Math.abs( max ) ? max : min;
         final double d = (min + max) / 2.0;
         System.out.println("normalization offset: " + -d);
-		totalDistortion.add( new Translation3D(new double[] {0, 0, -d}) );
+		return totalDistortion.translate( -d );
 	}
 
 	/**
@@ -155,13 +155,17 @@ public class FieldDisplacements implements Runnable {
 	 *
 	 * (cam distorted) -> (img distorted) -> (img undistorted) -> (cam undistorted)
 	 *
+	 * With --setup-camera, the camera of the setup is used and --inverse is
+	 * honored as in {@link FieldCorrection}.
+	 *
 	 * @return
 	 */
-	public InvertibleRealTransformSequence totalDistortionCorrectionTransform(int setupId) {
-		return concatenate( 
-				cameraModel.cameraToImage( setupId ),
-				OpticalModel.distortionTransform(false),
-				cameraModel.imageToCamera( setupId ));
+	public MirrorCorrectionTransform totalDistortionCorrectionTransform(int setupId) {
+		return new MirrorCorrectionTransform(cameraModel, cameraId(setupId), OpticalModel.R, setupCamera && inverse);
+	}
+
+	private int cameraId(final int setupId) {
+		return setupCamera ? cameraModel.setupToCamera(setupId) : setupId;
 	}
 
 	public static InvertibleRealTransformSequence concatenate( InvertibleRealTransform... transforms) {
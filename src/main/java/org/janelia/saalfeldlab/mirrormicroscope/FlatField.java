@@ -0,0 +1,151 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Dark frame and flat-field correction of one camera,
+ * v' = (v - dark(x,y)) / flat(x,y).
+ * <p>
+ * The flat-field is normalized to a mean of one when it is loaded, so that
+ * corrected intensities stay in the range of the raw data. Integer types
+ * are rounded and clamped to their range.
+ */
+public class FlatField {
+
+	public final int width;
+	public final int height;
+
+	// zero if there is no dark frame
+	private final float[] dark;
+	// 1 / flat, one if there is no flat-field
+	private final float[] gain;
+
+	public FlatField(final int width, final int height, final float[] dark, final float[] flat) {
+
+		this.width = width;
+		this.height = height;
+		this.dark = dark == null ? new float[width * height] : dark;
+
+		if (flat == null) {
+			gain = new float[width * height];
+			Arrays.fill(gain, 1);
+		} else {
+			double sum = 0;
+			for (final float f : flat)
+				sum += f;
+
+			final double mean = sum / flat.length;
+			gain = new float[flat.length];
+			for (int i = 0; i < flat.length; i++)
+				gain[i] = flat[i] > 0 ? (float)(mean / flat[i]) : 0;
+		}
+	}
+
+	/**
+	 * Loads the dark frame and the flat-field of a camera from 2d datasets.
+	 *
+	 * @param n5 the container
+	 * @param darkDataset the dark frame, or null
+	 * @param flatDataset the flat-field, or null
+	 * @return the correction
+	 */
+	public static FlatField load(final N5Reader n5, final String darkDataset, final String flatDataset) {
+
+		final long[] dimensions = n5.getDatasetAttributes(darkDataset != null ? darkDataset : flatDataset).getDimensions();
+		final int width = (int)dimensions[0];
+		final int height = (int)dimensions[1];
+
+		final float[] dark = darkDataset == null ? null : read(n5, darkDataset, width, height);
+		final float[] flat = flatDataset == null ? null : read(n5, flatDataset, width, height);
+		return new FlatField(width, height, dark, flat);
+	}
+
+	private static <T extends RealType<T> & NativeType<T>> float[] read(final N5Reader n5, final String dataset, final int width, final int height) {
+
+		final RandomAccessibleInterval<T> img = N5Utils.open(n5, dataset);
+		if (img.numDimensions() != 2 || img.dimension(0) != width || img.dimension(1) != height)
+			throw new IllegalArgumentException(dataset + " is not a " + width + " x " + height + " image");
+
+		final float[] values = new float[width * height];
+		final Cursor<T> c = Views.flatIterable(img).cursor();
+		for (int i = 0; i < values.length; i++)
+			values[i] = c.next().getRealFloat();
+
+		return values;
+	}
+
+	/**
+	 * Corrects a block of raw data in place. Planes of the block outside of
+	 * the raw image are padding and are left unchanged.
+	 *
+	 * @param data the primitive array of the block, x varying fastest
+	 * @param interval the 3d interval of the block in the raw image
+	 * @param depth the depth of the raw image
+	 * @param dataType the data type of the block
+	 */
+	public void apply(final Object data, final Interval interval, final long depth, final DataType dataType) {
+
+		final int sx = (int)interval.dimension(0);
+		final int sy = (int)interval.dimension(1);
+		final int minX = (int)interval.min(0);
+		final int minY = (int)interval.min(1);
+		final int plane = sx * sy;
+
+		final float[] d = dark;
+		final float[] g = gain;
+
+		final long minZ = Math.max(0, interval.min(2));
+		final long maxZ = Math.min(depth - 1, interval.max(2));
+		for (long z = minZ; z <= maxZ; z++) {
+			int i = (int)(z - interval.min(2)) * plane;
+			for (int y = 0; y < sy; y++) {
+				final int row = (minY + y) * width + minX;
+				switch (dataType) {
+				case UINT8:
+					final byte[] b = (byte[])data;
+					for (int x = 0, p = row; x < sx; x++, p++, i++)
+						b[i] = (byte)clamp(Math.round(((b[i] & 0xff) - d[p]) * g[p]), 0, 0xff);
+					break;
+				case UINT16:
+					final short[] u = (short[])data;
+					for (int x = 0, p = row; x < sx; x++, p++, i++)
+						u[i] = (short)clamp(Math.round(((u[i] & 0xffff) - d[p]) * g[p]), 0, 0xffff);
+					break;
+				case INT16:
+					final short[] s = (short[])data;
+					for (int x = 0, p = row; x < sx; x++, p++, i++)
+						s[i] = (short)clamp(Math.round((s[i] - d[p]) * g[p]), Short.MIN_VALUE, Short.MAX_VALUE);
+					break;
+				case FLOAT32:
+					final float[] f = (float[])data;
+					for (int x = 0, p = row; x < sx; x++, p++, i++)
+						f[i] = (f[i] - d[p]) * g[p];
+					break;
+				case FLOAT64:
+					final double[] a = (double[])data;
+					for (int x = 0, p = row; x < sx; x++, p++, i++)
+						a[i] = (a[i] - d[p]) * g[p];
+					break;
+				default:
+					throw new IllegalArgumentException("flat-field correction is not implemented for " + dataType);
+				}
+			}
+		}
+	}
+
+	private static long clamp(final long v, final long min, final long max) {
+		return v < min ? min : v > max ? max : v;
+	}
+
+}
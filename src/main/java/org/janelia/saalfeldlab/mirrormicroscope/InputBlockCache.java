@@ -0,0 +1,484 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.mirrormicroscope.CorrectionStats.Stage;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import net.imglib2.Interval;
+
+/**
+ * Decoded input blocks of one dataset, each read and decompressed once.
+ * <p>
+ * Every output block that needs an input block registers itself as a
+ * consumer before the input block is read. The input block is dropped as
+ * soon as its last consumer releases it, so with a scheduling order that
+ * keeps the consumers of a block together, every block is read exactly once
+ * and memory stays bounded. Blocks can be prefetched asynchronously.
+ * <p>
+ * Missing blocks are treated as zero.
+ * <p>
+ * With an {@link OffHeapCellStore}, decoded blocks are kept in direct
+ * buffers instead of on the heap, and blocks that the store evicted are
+ * read again. With a {@link ChunkMapper}, chunk files of uncompressed
+ * datasets are memory mapped and copied from directly, and neither of the
+ * above is used.
+ */
+public class InputBlockCache {
+
+	private final N5Reader n5r;
+	private final String dataset;
+	private final DatasetAttributes attributes;
+	private final BlockGrid grid;
+
+	private final HashMap<Long, Entry> entries = new HashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private long distinctBlocks = 0;
+
+	private CorrectionStats stats = new CorrectionStats();
+	// null keeps decoded blocks on the heap
+	private OffHeapCellStore store;
+	// null reads blocks through the N5Reader
+	private ChunkMapper mapper;
+
+	public InputBlockCache(final N5Reader n5r, final String dataset, final DatasetAttributes attributes) {
+
+		this.n5r = n5r;
+		this.dataset = dataset;
+		this.attributes = attributes;
+		grid = new BlockGrid(attributes.getDimensions(), attributes.getBlockSize());
+	}
+
+	public void setStats(final CorrectionStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @param store the store for decoded blocks, or null to keep them on the
+	 *        heap. Has to be set before blocks are read.
+	 */
+	public void setStore(final OffHeapCellStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * @param mapper maps the chunk files of the dataset, or null to read
+	 *        blocks through the N5Reader. Has to be set before blocks are
+	 *        read.
+	 */
+	public void setMapper(final ChunkMapper mapper) {
+		this.mapper = mapper;
+	}
+
+	public BlockGrid getGrid() {
+		return grid;
+	}
+
+	/**
+	 * @param sourceInterval an interval of the input, may exceed its bounds
+	 * @return the indices of the input blocks that intersect sourceInterval
+	 */
+	public long[] blockIndices(final Interval sourceInterval) {
+
+		final int n = grid.numDimensions();
+		final long[] dims = grid.getDimensions();
+		final int[] blockSize = grid.getBlockSize();
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		long count = 1;
+		for (int d = 0; d < n; d++) {
+			final long lo = Math.max(0, sourceInterval.min(d));
+			final long hi = Math.min(dims[d] - 1, sourceInterval.max(d));
+			if (hi < lo)
+				return new long[0];
+
+			min[d] = lo / blockSize[d];
+			max[d] = hi / blockSize[d];
+			count *= max[d] - min[d] + 1;
+		}
+
+		final long[] indices = new long[(int)count];
+		final long[] pos = min.clone();
+		for (int i = 0; i < count; i++) {
+			indices[i] = grid.index(pos);
+			for (int d = 0; d < n; d++) {
+				if (++pos[d] <= max[d])
+					break;
+				pos[d] = min[d];
+			}
+		}
+		return indices;
+	}
+
+	public synchronized void register(final long index) {
+
+		Entry entry = entries.get(index);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(index, entry);
+			distinctBlocks++;
+		}
+		entry.consumers++;
+	}
+
+	public synchronized void release(final long index) {
+
+		final Entry entry = entries.get(index);
+		if (entry != null && --entry.consumers <= 0) {
+			entries.remove(index);
+			if (entry.cell != null && entry.cell.isDone() && !entry.cell.isCompletedExceptionally()) {
+				final OffHeapCellStore.Cell cell = entry.cell.join();
+				if (cell != null)
+					store.remove(cell);
+			}
+		}
+	}
+
+	/**
+	 * Starts reading a registered block in the background if it is not
+	 * already loaded or being loaded.
+	 */
+	public synchronized void prefetch(final long index, final Executor executor) {
+
+		final Entry entry = entries.get(index);
+		if (entry == null)
+			return;
+
+		if (mapper != null) {
+			if (entry.chunk == null)
+				entry.chunk = CompletableFuture.supplyAsync(() -> map(index), executor);
+		} else if (store == null) {
+			if (entry.block == null)
+				entry.block = CompletableFuture.supplyAsync(() -> read(index), executor);
+		} else if (entry.cell == null)
+			entry.cell = CompletableFuture.supplyAsync(() -> readCell(index), executor);
+	}
+
+	/**
+	 * Returns a block, waiting for a pending prefetch or reading it in the
+	 * calling thread.
+	 *
+	 * @return the block or null if it does not exist
+	 */
+	public DataBlock<?> get(final long index) {
+
+		final CompletableFuture<DataBlock<?>> block;
+		boolean load = false;
+		synchronized (this) {
+			Entry entry = entries.get(index);
+			if (entry == null) {
+				// not registered, nothing to share
+				entry = new Entry();
+			}
+			if (entry.block == null) {
+				entry.block = new CompletableFuture<>();
+				load = true;
+				misses.incrementAndGet();
+			} else
+				hits.incrementAndGet();
+
+			block = entry.block;
+		}
+
+		if (load) {
+			try {
+				block.complete(read(index));
+			} catch (final RuntimeException e) {
+				block.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		return block.join();
+	}
+
+	/**
+	 * Returns a mapped chunk, waiting for a pending prefetch or mapping it in
+	 * the calling thread, see {@link #get}.
+	 *
+	 * @return the chunk or null if it does not exist
+	 */
+	private ChunkMapper.Chunk getChunk(final long index) {
+
+		final CompletableFuture<ChunkMapper.Chunk> chunk;
+		boolean load = false;
+		synchronized (this) {
+			Entry entry = entries.get(index);
+			if (entry == null)
+				entry = new Entry();
+
+			if (entry.chunk == null) {
+				entry.chunk = new CompletableFuture<>();
+				load = true;
+				misses.incrementAndGet();
+			} else
+				hits.incrementAndGet();
+
+			chunk = entry.chunk;
+		}
+
+		if (load) {
+			try {
+				chunk.complete(map(index));
+			} catch (final RuntimeException e) {
+				chunk.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		return chunk.join();
+	}
+
+	/**
+	 * Returns a block in the store, waiting for a pending prefetch or reading
+	 * it in the calling thread, see {@link #get}.
+	 *
+	 * @param evicted the cell that was found evicted, or null
+	 * @return the cell or null if the block does not exist
+	 */
+	private OffHeapCellStore.Cell getCell(final long index, final OffHeapCellStore.Cell evicted) {
+
+		final CompletableFuture<OffHeapCellStore.Cell> cell;
+		boolean load = false;
+		synchronized (this) {
+			Entry entry = entries.get(index);
+			if (entry == null)
+				entry = new Entry();
+
+			if (entry.cell != null && evicted != null && entry.cell.getNow(null) == evicted)
+				entry.cell = null;
+
+			if (entry.cell == null) {
+				entry.cell = new CompletableFuture<>();
+				load = true;
+				misses.incrementAndGet();
+			} else
+				hits.incrementAndGet();
+
+			cell = entry.cell;
+		}
+
+		if (load) {
+			try {
+				cell.complete(readCell(index));
+			} catch (final RuntimeException e) {
+				cell.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		return cell.join();
+	}
+
+	/**
+	 * Copies the part of the input inside sourceInterval into a flat array.
+	 * Parts outside the input or in missing blocks are left untouched. Blocks
+	 * may be stored with their full size at the border (as in Zarr).
+	 *
+	 * @param sourceInterval the interval of the slab
+	 * @param slab primitive array of the input's type, x varying fastest
+	 * @param indices the blocks intersecting sourceInterval
+	 */
+	public void fill(final Interval sourceInterval, final Object slab, final long[] indices) {
+
+		final int sx = (int)sourceInterval.dimension(0);
+		final int sy = (int)sourceInterval.dimension(1);
+		final long[] gridPosition = new long[3];
+		final long[] dims = grid.getDimensions();
+		final int[] blockSize = grid.getBlockSize();
+		for (final long index : indices) {
+
+			final DataBlock<?> block;
+			OffHeapCellStore.Cell cell = null;
+			ByteBuffer buffer = null;
+			final int[] size;
+			if (mapper != null) {
+				block = null;
+				final ChunkMapper.Chunk chunk = getChunk(index);
+				if (chunk == null)
+					continue;
+
+				buffer = chunk.data();
+				size = chunk.size;
+			} else if (store == null) {
+				block = get(index);
+				if (block == null)
+					continue;
+
+				size = block.getSize();
+			} else {
+				block = null;
+				cell = getCell(index, null);
+				while (cell != null && (buffer = store.pin(cell)) == null)
+					cell = getCell(index, cell);
+
+				if (cell == null)
+					continue;
+
+				size = cell.size;
+			}
+
+			grid.gridPosition(index, gridPosition);
+			final long bx = gridPosition[0] * blockSize[0];
+			final long by = gridPosition[1] * blockSize[1];
+			final long bz = gridPosition[2] * blockSize[2];
+
+			final long x0 = Math.max(bx, sourceInterval.min(0));
+			final long x1 = Math.min(Math.min(bx + size[0], dims[0]) - 1, sourceInterval.max(0));
+			final long y0 = Math.max(by, sourceInterval.min(1));
+			final long y1 = Math.min(Math.min(by + size[1], dims[1]) - 1, sourceInterval.max(1));
+			final long z0 = Math.max(bz, sourceInterval.min(2));
+			final long z1 = Math.min(Math.min(bz + size[2], dims[2]) - 1, sourceInterval.max(2));
+			final int len = (int)(x1 - x0 + 1);
+			if (len <= 0) {
+				if (cell != null)
+					store.unpin(cell);
+				continue;
+			}
+
+			final Object data = block == null ? null : block.getData();
+			final Buffer view = buffer == null ? null : OffHeapCellStore.view(buffer, attributes.getDataType());
+			try {
+				for (long z = z0; z <= z1; z++) {
+					for (long y = y0; y <= y1; y++) {
+						final int src = (int)(((z - bz) * size[1] + (y - by)) * size[0] + (x0 - bx));
+						final int dst = (int)(((z - sourceInterval.min(2)) * sy + (y - sourceInterval.min(1))) * sx + (x0 - sourceInterval.min(0)));
+						if (view == null)
+							System.arraycopy(data, src, slab, dst, len);
+						else
+							OffHeapCellStore.get(view, src, slab, dst, len);
+					}
+				}
+			} finally {
+				if (cell != null)
+					store.unpin(cell);
+			}
+		}
+	}
+
+	private ChunkMapper.Chunk map(final long index) {
+
+		final long t = CorrectionStats.now();
+		final ChunkMapper.Chunk chunk;
+		try {
+			chunk = mapper.map(grid.gridPosition(index));
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		reads.incrementAndGet();
+		if (chunk != null) {
+			final int numElements = chunk.size[0] * chunk.size[1] * chunk.size[2];
+			final long numBytes = (long)numElements * bytesPerElement(attributes.getDataType());
+			bytesRead.addAndGet(numBytes);
+			stats.record(Stage.READ, t, numBytes, numElements);
+		} else
+			stats.record(Stage.READ, t, 0, 0);
+
+		return chunk;
+	}
+
+	private OffHeapCellStore.Cell readCell(final long index) {
+
+		final DataBlock<?> block = read(index);
+		if (block == null)
+			return null;
+
+		try {
+			return store.put(block, attributes.getDataType());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private DataBlock<?> read(final long index) {
+
+		final long t = CorrectionStats.now();
+		final DataBlock<?> block = n5r.readBlock(dataset, attributes, grid.gridPosition(index));
+		reads.incrementAndGet();
+		if (block != null) {
+			final long numBytes = (long)block.getNumElements() * bytesPerElement(attributes.getDataType());
+			bytesRead.addAndGet(numBytes);
+			stats.record(Stage.READ, t, numBytes, block.getNumElements());
+		} else
+			stats.record(Stage.READ, t, 0, 0);
+
+		return block;
+	}
+
+	public static int bytesPerElement(final DataType dataType) {
+
+		switch (dataType) {
+		case UINT8:
+		case INT8:
+			return 1;
+		case UINT16:
+		case INT16:
+			return 2;
+		case UINT32:
+		case INT32:
+		case FLOAT32:
+			return 4;
+		default:
+			return 8;
+		}
+	}
+
+	/**
+	 * @return number of requests for blocks that were loaded or being prefetched
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of requests that had to read the block in the calling thread
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of blocks read and decompressed, including prefetches
+	 */
+	public long getReads() {
+		return reads.get();
+	}
+
+	/**
+	 * @return decoded bytes read
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * @return number of distinct blocks that were registered
+	 */
+	public synchronized long getDistinctBlocks() {
+		return distinctBlocks;
+	}
+
+	private static class Entry {
+
+		int consumers = 0;
+		CompletableFuture<DataBlock<?>> block;
+		CompletableFuture<OffHeapCellStore.Cell> cell;
+		CompletableFuture<ChunkMapper.Chunk> chunk;
+	}
+
+}
@@ -0,0 +1,267 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InvertibleRealTransform;
+
+/**
+ * The distortion of a camera in camera (pixel) coordinates in closed form.
+ * <p>
+ * The chain camera to image, spherical curvature distortion, image to
+ * camera, and a normalizing z-translation reduces to
+ * <pre>
+ * z' = z + sign * (R - sqrt(R^2 - r^2)) / rz + offset
+ * </pre>
+ * with r^2 = (rx x + tx)^2 + (ry y + ty)^2 in physical units. x and y do
+ * not change, so the inverse is exact.
+ */
+public class MirrorCorrectionTransform implements InvertibleRealTransform, ZOffsets {
+
+	private final double rx;
+	private final double ry;
+	private final double rz;
+	private final double tx;
+	private final double ty;
+
+	private final double radius;
+	private final double radius2;
+
+	private final double sign;
+	private final double offset;
+
+	public MirrorCorrectionTransform(
+			final double rx,
+			final double ry,
+			final double rz,
+			final double tx,
+			final double ty,
+			final double radius,
+			final double sign,
+			final double offset) {
+
+		this.rx = rx;
+		this.ry = ry;
+		this.rz = rz;
+		this.tx = tx;
+		this.ty = ty;
+		this.radius = radius;
+		this.radius2 = radius * radius;
+		this.sign = sign;
+		this.offset = offset;
+	}
+
+	/**
+	 * The same transform as {@link CameraModel#cameraToImage(int)},
+	 * {@link OpticalModel#distortionTransform(boolean)} and
+	 * {@link CameraModel#imageToCamera(int)}, without normalization.
+	 *
+	 * @param cameraModel the camera model
+	 * @param cameraId the camera
+	 * @param radius the radius of curvature
+	 * @param inverse whether the distortion is inverted
+	 */
+	public MirrorCorrectionTransform(final CameraModel cameraModel, final int cameraId, final double radius, final boolean inverse) {
+
+		this(cameraModel.rx, cameraModel.ry, cameraModel.rz,
+				cameraModel.xPositionsPhysical[cameraId], cameraModel.yPositionsPhysical[cameraId],
+				radius, inverse ? -1 : 1, 0);
+	}
+
+	/**
+	 * @param dz the z-translation that is added to the offsets
+	 * @return this transform followed by a translation along z
+	 */
+	public MirrorCorrectionTransform translate(final double dz) {
+		return new MirrorCorrectionTransform(rx, ry, rz, tx, ty, radius, sign, offset + dz);
+	}
+
+	/**
+	 * Shifts the offsets such that the mean of their extrema over the corners
+	 * of the (x,y) interval [0, width-1] x [0, height-1] is zero, as
+	 * {@link Normalization#minMaxOffsetsCorners} does.
+	 *
+	 * @param width the width
+	 * @param height the height
+	 * @return the normalized transform
+	 */
+	public MirrorCorrectionTransform normalize(final long width, final long height) {
+
+		final double[] minMax = minMaxOffsetsCorners(width, height);
+		return translate(-(minMax[0] + minMax[1]) / 2.0);
+	}
+
+	/**
+	 * @return the extrema of the offsets over the corners of
+	 *         [0, width-1] x [0, height-1]
+	 */
+	public double[] minMaxOffsetsCorners(final long width, final long height) {
+
+		final double[] minMax = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		for (final long y : new long[]{0, height - 1}) {
+			for (final long x : new long[]{0, width - 1}) {
+				final double d = dz(x, y);
+				minMax[0] = Math.min(minMax[0], d);
+				minMax[1] = Math.max(minMax[1], d);
+			}
+		}
+		return minMax;
+	}
+
+	/**
+	 * The exact extrema of the offsets over a rectangle of (x,y) positions.
+	 * <p>
+	 * The offset grows with the distance from the optical axis, so it is
+	 * extremal at the points of the rectangle closest to and farthest from
+	 * the axis. The closest point is inside the rectangle if the axis passes
+	 * through it, which the corners of the rectangle miss.
+	 *
+	 * @param minX the min x
+	 * @param minY the min y
+	 * @param maxX the max x
+	 * @param maxY the max y
+	 * @return min and max offset
+	 */
+	public double[] minMaxOffsets(final double minX, final double minY, final double maxX, final double maxY) {
+
+		// axis position in camera coordinates
+		final double ax = -tx / rx;
+		final double ay = -ty / ry;
+
+		final double nearX = Math.max(minX, Math.min(maxX, ax));
+		final double nearY = Math.max(minY, Math.min(maxY, ay));
+		final double farX = Math.abs(minX - ax) > Math.abs(maxX - ax) ? minX : maxX;
+		final double farY = Math.abs(minY - ay) > Math.abs(maxY - ay) ? minY : maxY;
+
+		final double near = dz(nearX, nearY);
+		final double far = dz(farX, farY);
+		return new double[]{Math.min(near, far), Math.max(near, far)};
+	}
+
+	/**
+	 * @param interval an interval whose first two dimensions are x and y
+	 * @return min and max offset over the interval
+	 */
+	public double[] minMaxOffsets(final RealInterval interval) {
+
+		return minMaxOffsets(interval.realMin(0), interval.realMin(1), interval.realMax(0), interval.realMax(1));
+	}
+
+	public double getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the z-offset at a real (x,y) position
+	 */
+	public double dz(final double x, final double y) {
+
+		final double px = rx * x + tx;
+		final double py = ry * y + ty;
+		return sign * (radius - Math.sqrt(radius2 - px * px - py * py)) / rz + offset;
+	}
+
+	@Override
+	public double dz(final long x, final long y) {
+		return dz((double)x, (double)y);
+	}
+
+	@Override
+	public int numSourceDimensions() {
+		return 3;
+	}
+
+	@Override
+	public int numTargetDimensions() {
+		return 3;
+	}
+
+	@Override
+	public void apply(final double[] source, final double[] target) {
+
+		final double x = source[0];
+		final double y = source[1];
+		target[0] = x;
+		target[1] = y;
+		target[2] = source[2] + dz(x, y);
+	}
+
+	@Override
+	public void apply(final RealLocalizable source, final RealPositionable target) {
+
+		final double x = source.getDoublePosition(0);
+		final double y = source.getDoublePosition(1);
+		target.setPosition(x, 0);
+		target.setPosition(y, 1);
+		target.setPosition(source.getDoublePosition(2) + dz(x, y), 2);
+	}
+
+	/**
+	 * Transforms points that are stored as x0, y0, z0, x1, y1, z1, ...
+	 * source and target may be the same array.
+	 *
+	 * @param source the source coordinates
+	 * @param target the target coordinates
+	 * @param numPoints the number of points
+	 */
+	public void apply(final double[] source, final double[] target, final int numPoints) {
+
+		for (int i = 0, j = 0; i < numPoints; i++, j += 3) {
+			final double x = source[j];
+			final double y = source[j + 1];
+			target[j] = x;
+			target[j + 1] = y;
+			target[j + 2] = source[j + 2] + dz(x, y);
+		}
+	}
+
+	@Override
+	public void applyInverse(final double[] source, final double[] target) {
+
+		final double x = target[0];
+		final double y = target[1];
+		source[0] = x;
+		source[1] = y;
+		source[2] = target[2] - dz(x, y);
+	}
+
+	@Override
+	public void applyInverse(final RealPositionable source, final RealLocalizable target) {
+
+		final double x = target.getDoublePosition(0);
+		final double y = target.getDoublePosition(1);
+		source.setPosition(x, 0);
+		source.setPosition(y, 1);
+		source.setPosition(target.getDoublePosition(2) - dz(x, y), 2);
+	}
+
+	/**
+	 * Inverse of {@link #apply(double[], double[], int)}.
+	 *
+	 * @param source the source coordinates
+	 * @param target the target coordinates
+	 * @param numPoints the number of points
+	 */
+	public void applyInverse(final double[] source, final double[] target, final int numPoints) {
+
+		for (int i = 0, j = 0; i < numPoints; i++, j += 3) {
+			final double x = target[j];
+			final double y = target[j + 1];
+			source[j] = x;
+			source[j + 1] = y;
+			source[j + 2] = target[j + 2] - dz(x, y);
+		}
+	}
+
+	@Override
+	public MirrorCorrectionTransform inverse() {
+		return new MirrorCorrectionTransform(rx, ry, rz, tx, ty, radius, -sign, -offset);
+	}
+
+	@Override
+	public MirrorCorrectionTransform copy() {
+		// stateless
+		return this;
+	}
+
+}
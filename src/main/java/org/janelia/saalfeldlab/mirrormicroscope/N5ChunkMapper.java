@@ -0,0 +1,129 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Memory maps the chunk files of an uncompressed N5 or Zarr (v2) dataset on
+ * a local file system.
+ * <p>
+ * N5 chunks start with a header that holds their size and store big endian
+ * data. Zarr chunks have the full block size at the border and the byte
+ * order of their dtype.
+ */
+public class N5ChunkMapper implements ChunkMapper {
+
+	private final Path dir;
+	private final int[] blockSize;
+	private final boolean zarr;
+	private final String separator;
+	private final ByteOrder order;
+
+	private N5ChunkMapper(final Path dir, final int[] blockSize, final boolean zarr, final String separator, final ByteOrder order) {
+
+		this.dir = dir;
+		this.blockSize = blockSize;
+		this.zarr = zarr;
+		this.separator = separator;
+		this.order = order;
+	}
+
+	/**
+	 * @param root the container
+	 * @param dataset the dataset
+	 * @param attributes the attributes of the dataset
+	 * @return the mapper, or null if the dataset is compressed, not local or
+	 *         not in a layout that can be mapped
+	 */
+	public static N5ChunkMapper open(final String root, final String dataset, final DatasetAttributes attributes) {
+
+		if (!(attributes.getCompression() instanceof RawCompression))
+			return null;
+
+		if (root.contains("://") && !root.startsWith("file:"))
+			return null;
+
+		final Path dir = Paths.get(root.replaceFirst("^file:(//)?", "")).resolve(dataset.replaceAll("^/+", ""));
+		final Path zarray = dir.resolve(".zarray");
+		if (!Files.exists(zarray))
+			return Files.exists(dir.resolve("attributes.json"))
+					? new N5ChunkMapper(dir, attributes.getBlockSize(), false, "/", ByteOrder.BIG_ENDIAN)
+					: null;
+
+		try (final Reader reader = Files.newBufferedReader(zarray, StandardCharsets.UTF_8)) {
+			final JsonObject meta = new JsonParser().parse(reader).getAsJsonObject();
+			final JsonElement filters = meta.get("filters");
+			final JsonElement order = meta.get("order");
+			if ((filters != null && !filters.isJsonNull()) || (order != null && !"C".equals(order.getAsString())))
+				return null;
+
+			final JsonElement separator = meta.get("dimension_separator");
+			final String dtype = meta.get("dtype").getAsString();
+			return new N5ChunkMapper(
+					dir,
+					attributes.getBlockSize(),
+					true,
+					separator == null ? "." : separator.getAsString(),
+					dtype.startsWith(">") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		} catch (final IOException | RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private Path path(final long[] gridPosition) {
+
+		final StringBuilder key = new StringBuilder();
+		for (int i = 0; i < gridPosition.length; i++) {
+			// zarr orders dimensions the other way round
+			final long p = zarr ? gridPosition[gridPosition.length - 1 - i] : gridPosition[i];
+			if (i > 0)
+				key.append(zarr ? separator : "/");
+			key.append(p);
+		}
+		return dir.resolve(key.toString());
+	}
+
+	@Override
+	public Chunk map(final long[] gridPosition) throws IOException {
+
+		final MappedByteBuffer buffer;
+		try (final FileChannel channel = FileChannel.open(path(gridPosition), StandardOpenOption.READ)) {
+			// the mapping stays valid after the channel is closed
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (final NoSuchFileException e) {
+			return null;
+		}
+
+		if (zarr)
+			return new Chunk(blockSize.clone(), buffer, order);
+
+		// mode, number of dimensions, size, and the number of elements for mode 1
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		final short mode = buffer.getShort(0);
+		final int n = buffer.getShort(2);
+		final int[] size = new int[n];
+		for (int d = 0; d < n; d++)
+			size[d] = buffer.getInt(4 + 4 * d);
+
+		buffer.position(4 + 4 * n + (mode == 1 ? 4 : 0));
+		return new Chunk(size, buffer.slice(), order);
+	}
+
+}
@@ -0,0 +1,280 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+/**
+ * Decoded input blocks in direct buffers outside of the Java heap, with a
+ * hard byte budget that is shared by all {@link InputBlockCache}s of a run.
+ * <p>
+ * When the budget is exceeded, the least recently used cells that are not
+ * pinned are evicted, and are read again if they are needed later. Cells are
+ * pinned while they are copied from, and storing a cell waits until pinned
+ * cells are released if nothing else can be evicted. Buffers of evicted
+ * cells are reused for new cells of the same size, because direct memory is
+ * only returned when the garbage collector gets to it.
+ */
+public class OffHeapCellStore {
+
+	private final long budget;
+	private long used = 0;
+	private long pooled = 0;
+	private long peak = 0;
+
+	private final LinkedHashMap<Cell, Cell> lru = new LinkedHashMap<>(16, 0.75f, true);
+	private final HashMap<Integer, ArrayDeque<ByteBuffer>> pool = new HashMap<>();
+
+	private long allocations = 0;
+	private long reuses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param budget the maximum number of bytes of stored and pooled buffers
+	 */
+	public OffHeapCellStore(final long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * A decoded block. Its data is null once it was evicted or removed.
+	 */
+	public static class Cell {
+
+		public final int[] size;
+		private final int capacity;
+		private ByteBuffer data;
+		private int pins = 0;
+		private boolean removed = false;
+
+		Cell(final int[] size, final int capacity) {
+
+			this.size = size;
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * Copies a block into a new cell.
+	 *
+	 * @param block the block
+	 * @param dataType the data type of the block
+	 * @return the cell
+	 * @throws InterruptedException
+	 */
+	public synchronized Cell put(final DataBlock<?> block, final DataType dataType) throws InterruptedException {
+
+		final int capacity = block.getNumElements() * InputBlockCache.bytesPerElement(dataType);
+		while (used > 0 && used + capacity > budget) {
+			if (!evict(used + capacity - budget))
+				wait();
+		}
+
+		final Cell cell = new Cell(block.getSize(), capacity);
+		cell.data = allocate(capacity);
+		put(view(cell.data.duplicate().order(ByteOrder.nativeOrder()), dataType), block.getData());
+		used += capacity;
+		peak = Math.max(peak, used);
+		lru.put(cell, cell);
+		return cell;
+	}
+
+	/**
+	 * Pins a cell, so it is not evicted until it is unpinned.
+	 *
+	 * @return a buffer of the data of the cell, or null if it was evicted
+	 */
+	public synchronized ByteBuffer pin(final Cell cell) {
+
+		if (cell.data == null)
+			return null;
+
+		cell.pins++;
+		lru.get(cell);
+		return cell.data.duplicate().order(ByteOrder.nativeOrder());
+	}
+
+	public synchronized void unpin(final Cell cell) {
+
+		if (--cell.pins == 0 && cell.removed)
+			release(cell);
+
+		notifyAll();
+	}
+
+	/**
+	 * Drops a cell that is not needed anymore.
+	 */
+	public synchronized void remove(final Cell cell) {
+
+		if (cell.data == null || cell.removed)
+			return;
+
+		cell.removed = true;
+		lru.remove(cell);
+		if (cell.pins == 0)
+			release(cell);
+
+		notifyAll();
+	}
+
+	/**
+	 * Evicts unpinned cells, least recently used first.
+	 *
+	 * @return whether numBytes were freed
+	 */
+	private boolean evict(final long numBytes) {
+
+		long freed = 0;
+		final Iterator<Cell> it = lru.keySet().iterator();
+		while (freed < numBytes && it.hasNext()) {
+			final Cell cell = it.next();
+			if (cell.pins > 0)
+				continue;
+
+			it.remove();
+			freed += cell.capacity;
+			release(cell);
+			evictions++;
+		}
+		return freed >= numBytes;
+	}
+
+	private void release(final Cell cell) {
+
+		used -= cell.capacity;
+		pool.computeIfAbsent(cell.capacity, k -> new ArrayDeque<>()).push(cell.data);
+		pooled += cell.capacity;
+		cell.data = null;
+	}
+
+	private ByteBuffer allocate(final int capacity) {
+
+		final ArrayDeque<ByteBuffer> buffers = pool.get(capacity);
+		if (buffers != null && !buffers.isEmpty()) {
+			pooled -= capacity;
+			reuses++;
+			final ByteBuffer buffer = buffers.pop();
+			buffer.clear();
+			return buffer;
+		}
+
+		// pooled buffers of other sizes are left to the garbage collector
+		for (final ArrayDeque<ByteBuffer> other : pool.values()) {
+			while (used + pooled + capacity > budget && !other.isEmpty())
+				pooled -= other.pop().capacity();
+		}
+
+		allocations++;
+		return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * @return a typed view of a buffer
+	 */
+	public static Buffer view(final ByteBuffer buffer, final DataType dataType) {
+
+		switch (dataType) {
+		case UINT8:
+		case INT8:
+			return buffer;
+		case UINT16:
+		case INT16:
+			return buffer.asShortBuffer();
+		case UINT32:
+		case INT32:
+			return buffer.asIntBuffer();
+		case FLOAT32:
+			return buffer.asFloatBuffer();
+		case FLOAT64:
+			return buffer.asDoubleBuffer();
+		default:
+			return buffer.asLongBuffer();
+		}
+	}
+
+	/**
+	 * Copies length elements at position of a typed view into a primitive
+	 * array.
+	 */
+	public static void get(final Buffer view, final int position, final Object array, final int offset, final int length) {
+
+		view.position(position);
+		if (view instanceof ShortBuffer)
+			((ShortBuffer)view).get((short[])array, offset, length);
+		else if (view instanceof ByteBuffer)
+			((ByteBuffer)view).get((byte[])array, offset, length);
+		else if (view instanceof IntBuffer)
+			((IntBuffer)view).get((int[])array, offset, length);
+		else if (view instanceof FloatBuffer)
+			((FloatBuffer)view).get((float[])array, offset, length);
+		else if (view instanceof DoubleBuffer)
+			((DoubleBuffer)view).get((double[])array, offset, length);
+		else
+			((LongBuffer)view).get((long[])array, offset, length);
+	}
+
+	private static void put(final Buffer view, final Object array) {
+
+		if (view instanceof ShortBuffer)
+			((ShortBuffer)view).put((short[])array);
+		else if (view instanceof ByteBuffer)
+			((ByteBuffer)view).put((byte[])array);
+		else if (view instanceof IntBuffer)
+			((IntBuffer)view).put((int[])array);
+		else if (view instanceof FloatBuffer)
+			((FloatBuffer)view).put((float[])array);
+		else if (view instanceof DoubleBuffer)
+			((DoubleBuffer)view).put((double[])array);
+		else
+			((LongBuffer)view).put((long[])array);
+	}
+
+	/**
+	 * @return bytes in stored cells
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * @return the largest number of bytes in stored cells
+	 */
+	public synchronized long getPeak() {
+		return peak;
+	}
+
+	/**
+	 * @return number of direct buffers that were allocated
+	 */
+	public synchronized long getAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * @return number of cells that reused the buffer of an evicted cell
+	 */
+	public synchronized long getReuses() {
+		return reuses;
+	}
+
+	/**
+	 * @return number of cells that were evicted before they were removed
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+}
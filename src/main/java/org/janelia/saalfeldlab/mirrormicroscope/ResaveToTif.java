@@ -25,6 +25,14 @@ public class ResaveToTif {
 		System.out.println("output: " + out);
 
 		N5Reader reader = new N5Factory().openReader(root);
+
+		// optional: <num-columns> [<active-cameras>] reads dset (e.g. setup3/0)
+		// from the field corrected setups without writing them first
+		if (args.length > 3) {
+			final CameraModel cameraModel = CameraModel.fromArgs(Integer.parseInt(args[3]), args.length > 4 ? args[4] : "0-9");
+			reader = new CorrectedN5Reader(reader, cameraModel);
+			System.out.println("reading corrected data");
+		}
 		save(N5Utils.open(reader, dset), dset, out);
 
 		System.out.println("done");
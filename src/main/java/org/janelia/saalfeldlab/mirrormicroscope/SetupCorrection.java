@@ -0,0 +1,1019 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.mirrormicroscope.CorrectionStats.Stage;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import com.google.gson.JsonElement;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.view.Views;
+
+/**
+ * The input, output and block grid of the field correction of a single
+ * setup.
+ * <p>
+ * Several of these share one {@link N5Reader}, {@link N5Writer} and worker
+ * pool when {@link FieldCorrection} runs in batch mode.
+ */
+public class SetupCorrection<T extends NumericType<T> & NativeType<T>> {
+
+	// how long parts other than 0 wait for the output to be created
+	private static final long OUTPUT_TIMEOUT = 10 * 60 * 1000;
+
+	public final int setupId;
+
+	private final String inputDataset;
+	private final String outputGroup;
+	private final String outputDataset;
+
+	private DatasetAttributes inputAttributes;
+	private InputBlockCache inputCache;
+	// closed when the last block of this process is written, if set
+	private TiffStack stack;
+	private RandomAccessibleInterval<T> rawImg;
+	private T type;
+	private RandomAccessibleInterval<T> correctedImg;
+	private ZColumnResampler<T> resampler;
+	private FlatField flatField;
+
+	// other channels of the same tile, written with the weights of this setup
+	private final List<SetupCorrection<T>> channels = new ArrayList<>();
+
+	private N5Writer n5w;
+	private ZarrShardWriter shardWriter;
+	private ZarrShardWriter.Array shardArray;
+	private DatasetAttributes outputAttributes;
+	private boolean outputExisted;
+	private BlockGrid grid;
+	private BlockPyramid<T> pyramid;
+
+	// recycles slabs and blocks, and writes blocks on other threads, if set
+	private ArrayImgPool pool;
+	private WriteBehind writeBehind;
+
+	private BlockManifest manifest;
+	private boolean manifestsClosed = false;
+	// blocks that are done at all levels, and blocks that are done at level 0
+	// but are read back for the levels above
+	private final BitSet skipped = new BitSet();
+	private final BitSet readBack = new BitSet();
+	// blocks whose input is entirely outside of the input
+	private final BitSet empty = new BitSet();
+	private RandomAccessibleInterval<T> outputImg;
+
+	// origin of the output in the output coordinates of the multiscales metadata
+	private double[] outputOffset;
+
+	// output block columns are scheduled in tiles of this many columns
+	private int columnTileX = 1;
+	private int columnTileY = 1;
+
+	// z-halo of each column of output blocks
+	private int[] haloMin;
+	private int[] haloMax;
+
+	// this process writes the blocks at the positions of part of numParts
+	// equal ranges of the schedule
+	private int part = 0;
+	private int numParts = 1;
+	// whether this process creates the output, or waits for another one
+	private boolean createsOutput = true;
+
+	private final AtomicLong written = new AtomicLong();
+	// blocks scheduled so far, and whether no more will be
+	private long scheduled = 0;
+	private boolean scheduleComplete = false;
+	private boolean closed = false;
+
+	private CorrectionStats stats = new CorrectionStats();
+	private int bytesPerElement;
+
+	public SetupCorrection(final int setupId, final String inputDataset, final String outputGroup) {
+
+		this.setupId = setupId;
+		this.inputDataset = inputDataset;
+		this.outputGroup = outputGroup;
+		// bigstitcher needs the array for an ome-zarr dataset to be "/0"
+		this.outputDataset = outputGroup + "/0";
+	}
+
+	public RandomAccessibleInterval<T> open(final N5Reader n5r) {
+
+		inputAttributes = n5r.getDatasetAttributes(inputDataset);
+		inputCache = new InputBlockCache(n5r, inputDataset, inputAttributes);
+		inputCache.setStats(stats);
+		bytesPerElement = InputBlockCache.bytesPerElement(inputAttributes.getDataType());
+		final CachedCellImg<T, ?> img = N5Utils.open(n5r, inputDataset);
+		rawImg = img;
+		type = img.getType().createVariable();
+		return img;
+	}
+
+	/**
+	 * Opens a TIFF stack as the input. The correction maps the planes of the
+	 * stack and reads each plane once, the returned image is for viewing.
+	 *
+	 * @param stack the stack
+	 * @return the raw image
+	 */
+	public RandomAccessibleInterval<T> open(final TiffStack stack) {
+
+		inputAttributes = stack.getAttributes();
+		inputCache = new InputBlockCache(null, inputDataset, inputAttributes);
+		inputCache.setMapper(stack);
+		this.stack = stack;
+		inputCache.setStats(stats);
+		bytesPerElement = InputBlockCache.bytesPerElement(inputAttributes.getDataType());
+		type = N5Utils.<T>type(inputAttributes.getDataType());
+		final int[] blockSize = inputAttributes.getBlockSize();
+		final CachedCellImg<T, ?> img = new ReadOnlyCachedCellImgFactory(ReadOnlyCachedCellImgOptions.options().cellDimensions(blockSize))
+				.create(inputAttributes.getDimensions(), type, cell -> inputCache.fill(cell,
+						((ArrayDataAccess<?>)cell.update(null)).getCurrentStorageArray(),
+						inputCache.blockIndices(cell)));
+		rawImg = img;
+		return img;
+	}
+
+	public RandomAccessibleInterval<T> getRawImg() {
+		return rawImg;
+	}
+
+	public DatasetAttributes getInputAttributes() {
+		return inputAttributes;
+	}
+
+	public RandomAccessibleInterval<T> getCorrectedImg() {
+		return correctedImg;
+	}
+
+	/**
+	 * @param correctedImg the corrected 5d (x,y,z,c,t) image
+	 */
+	public void setCorrectedImg(final RandomAccessibleInterval<T> correctedImg) {
+		this.correctedImg = correctedImg;
+	}
+
+	public ZColumnResampler<T> getResampler() {
+		return resampler;
+	}
+
+	public void setResampler(final ZColumnResampler<T> resampler) {
+		this.resampler = resampler;
+	}
+
+	/**
+	 * @param flatField dark frame and flat-field correction that is applied
+	 *        to the input of every block before resampling, or null. Has to
+	 *        have the width and height of the input.
+	 */
+	public void setFlatField(final FlatField flatField) {
+
+		final long[] dimensions = inputAttributes.getDimensions();
+		if (flatField != null && (flatField.width != dimensions[0] || flatField.height != dimensions[1]))
+			throw new IllegalArgumentException(String.format("the flat-field of setup %d is %d x %d, its input is %d x %d",
+					setupId, flatField.width, flatField.height, dimensions[0], dimensions[1]));
+
+		this.flatField = flatField;
+	}
+
+	/**
+	 * @param pool recycles the slabs and output blocks, or null to allocate
+	 *        them for every block
+	 */
+	public void setPool(final ArrayImgPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * @param writeBehind writes output blocks on I/O threads, or null to
+	 *        write them on the thread that computed them
+	 */
+	public void setWriteBehind(final WriteBehind writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	/**
+	 * Adds another channel of the same tile. Its blocks are written in the
+	 * same traversal as the blocks of this setup, with the same z-halos and
+	 * interpolation weights, so both need the same offsets and output grid.
+	 * The channel must not be queued by itself.
+	 *
+	 * @param channel the other channel
+	 */
+	public void addChannel(final SetupCorrection<T> channel) {
+		channels.add(channel);
+	}
+
+	/**
+	 * @return the number of output blocks of this setup and its channels
+	 */
+	public long numBlocks() {
+		return (endPosition() - firstPosition()) * (1 + channels.size());
+	}
+
+	/**
+	 * Splits the output blocks between processes that write the same output,
+	 * e.g. on different nodes. Every process writes a contiguous range of
+	 * the schedule, so the input it reads is mostly its own. Part 0 creates
+	 * the output and writes its metadata, the others wait until it exists.
+	 * Has to be called before {@link #createOutput}.
+	 *
+	 * @param part the part of this process
+	 * @param numParts the number of parts
+	 */
+	public void setPart(final int part, final int numParts) {
+
+		this.part = part;
+		this.numParts = numParts;
+		createsOutput = part == 0;
+	}
+
+	/**
+	 * @param createsOutput whether this process creates the output and
+	 *        writes its metadata, or waits until another process did
+	 */
+	public void setCreatesOutput(final boolean createsOutput) {
+		this.createsOutput = createsOutput;
+	}
+
+	/**
+	 * @return the first position of the schedule that this process writes
+	 */
+	public long firstPosition() {
+		return grid.numBlocks() * part / numParts;
+	}
+
+	/**
+	 * @return the position after the last position of the schedule that
+	 *         this process writes
+	 */
+	public long endPosition() {
+		return grid.numBlocks() * (part + 1) / numParts;
+	}
+
+	/**
+	 * @return the origin of the output if it is not at zero, or null
+	 */
+	public double[] getOutputOffset() {
+		return outputOffset;
+	}
+
+	public void setOutputOffset(final double[] outputOffset) {
+		this.outputOffset = outputOffset;
+	}
+
+	public String getOutputDataset() {
+		return outputDataset;
+	}
+
+	public BlockGrid getGrid() {
+		return grid;
+	}
+
+	public BlockPyramid<T> getPyramid() {
+		return pyramid;
+	}
+
+	/**
+	 * Creates the output array and writes the ome-zarr metadata of its group.
+	 *
+	 * @param n5w the writer
+	 * @param blockSize the 5d output block size
+	 * @param ngffMeta the multiscales metadata
+	 */
+	public void createOutput(final N5Writer n5w, final int[] blockSize, final JsonElement ngffMeta) {
+
+		createOutput(n5w, blockSize, new double[][]{{1, 1, 1}}, ngffMeta);
+	}
+
+	/**
+	 * Creates the output arrays of all levels and writes the ome-zarr
+	 * metadata of their group.
+	 *
+	 * @param n5w the writer
+	 * @param blockSize the 5d output block size
+	 * @param factors the absolute 3d downsampling factors of all levels,
+	 *        starting with level 0
+	 * @param ngffMeta the multiscales metadata
+	 * @throws IllegalArgumentException if the block size does not tile the
+	 *         input blocks, see {@link #checkInputBlocks}
+	 */
+	public void createOutput(final N5Writer n5w, final int[] blockSize, final double[][] factors, final JsonElement ngffMeta) {
+
+		checkInputBlocks(blockSize);
+		this.n5w = n5w;
+		final long[] dimensions = correctedImg.dimensionsAsLongArray();
+		outputExisted = n5w.datasetExists(outputDataset);
+		if (createsOutput) {
+			n5w.createDataset(outputDataset, dimensions, blockSize, inputAttributes.getDataType(), inputAttributes.getCompression());
+			outputAttributes = n5w.getDatasetAttributes(outputDataset);
+		} else
+			outputAttributes = awaitOutput(dimensions, blockSize);
+
+		grid = new BlockGrid(dimensions, blockSize);
+
+		if (factors.length > 1) {
+			pyramid = new BlockPyramid<>(n5w, outputGroup,
+					new long[]{dimensions[0], dimensions[1], dimensions[2]},
+					new int[]{blockSize[0], blockSize[1], blockSize[2]},
+					factors, inputAttributes.getDataType(), inputAttributes.getCompression(), type);
+
+			// finish the blocks of the coarsest level one after the other
+			final double[] f = factors[factors.length - 1];
+			columnTileX = (int)f[0];
+			columnTileY = (int)f[1];
+		}
+		tileInputBlocks(blockSize);
+
+		if (createsOutput)
+			n5w.setAttribute(outputGroup, "/", ngffMeta);
+	}
+
+	/**
+	 * Waits until another process has created the output dataset with the
+	 * given dimensions and block size. Attributes that can not be read yet
+	 * or are left over from an earlier run are read again.
+	 *
+	 * @return the attributes of the output dataset
+	 */
+	private DatasetAttributes awaitOutput(final long[] dimensions, final int[] blockSize) {
+
+		final long deadline = System.currentTimeMillis() + OUTPUT_TIMEOUT;
+		while (true) {
+			try {
+				if (n5w.datasetExists(outputDataset)) {
+					final DatasetAttributes attributes = n5w.getDatasetAttributes(outputDataset);
+					if (attributes != null
+							&& Arrays.equals(attributes.getDimensions(), dimensions)
+							&& Arrays.equals(attributes.getBlockSize(), blockSize))
+						return attributes;
+				}
+			} catch (final RuntimeException e) {
+				// partially written, try again
+			}
+
+			if (System.currentTimeMillis() > deadline)
+				throw new RuntimeException("timed out waiting for " + outputDataset + " to be created");
+
+			try {
+				Thread.sleep(1000);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Creates the output as a sharded Zarr v3 array and writes the ome-zarr
+	 * metadata of its group. Every block of the output grid is a shard,
+	 * which is computed in one piece and written with one write.
+	 *
+	 * @param shardWriter the writer
+	 * @param shardSize the 5d shard size
+	 * @param chunkSize the 5d size of the chunks in a shard
+	 * @param ngffMeta the multiscales metadata
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the shard size does not tile the
+	 *         input blocks, see {@link #checkInputBlocks}
+	 */
+	public void createShardedOutput(final ZarrShardWriter shardWriter, final int[] shardSize, final int[] chunkSize, final JsonElement ngffMeta) throws IOException {
+
+		checkInputBlocks(shardSize);
+		this.shardWriter = shardWriter;
+		final long[] dimensions = correctedImg.dimensionsAsLongArray();
+		outputExisted = shardWriter.exists(outputDataset);
+		if (createsOutput) {
+			shardArray = shardWriter.createArray(outputDataset, dimensions, shardSize, chunkSize, inputAttributes.getDataType());
+			shardWriter.createGroup(outputGroup, ZarrShardWriter.omeAttributes(ngffMeta));
+		} else {
+			// metadata is written atomically, so it is complete once it exists
+			shardArray = shardWriter.array(outputDataset, dimensions, shardSize, chunkSize, inputAttributes.getDataType());
+			final long deadline = System.currentTimeMillis() + OUTPUT_TIMEOUT;
+			while (!shardWriter.exists(outputDataset)) {
+				if (System.currentTimeMillis() > deadline)
+					throw new IOException("timed out waiting for " + outputDataset + " to be created");
+
+				try {
+					Thread.sleep(1000);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+		}
+
+		grid = new BlockGrid(dimensions, shardSize);
+		tileInputBlocks(shardSize);
+	}
+
+	/**
+	 * Checks that output blocks in x and y are either a multiple of the input
+	 * blocks or divide them, along dimensions with more than one input block.
+	 * Otherwise input blocks straddle two rows of tiles and a whole row of
+	 * them stays in memory from one row of tiles to the next.
+	 */
+	private void checkInputBlocks(final int[] blockSize) {
+
+		final long[] inputDimensions = inputAttributes.getDimensions();
+		final int[] inputBlockSize = inputAttributes.getBlockSize();
+		for (int d = 0; d < 2; d++)
+			if (inputBlockSize[d] < inputDimensions[d] && inputBlockSize[d] % blockSize[d] != 0 && blockSize[d] % inputBlockSize[d] != 0)
+				throw new IllegalArgumentException("output block size " + blockSize[d] + " in " + "xy".charAt(d)
+						+ " neither divides nor is a multiple of the input block size " + inputBlockSize[d] + " of " + outputDataset);
+	}
+
+	/**
+	 * Output blocks that are narrower than the input blocks share input
+	 * blocks with their neighbors in x and y. Tiles are widened to a multiple
+	 * of the output blocks per input block, so that they start on input
+	 * block boundaries and every input block is released within one tile.
+	 */
+	private void tileInputBlocks(final int[] blockSize) {
+
+		final int[] inputBlockSize = inputAttributes.getBlockSize();
+		columnTileX = lcm(columnTileX, (inputBlockSize[0] + blockSize[0] - 1) / blockSize[0]);
+		columnTileY = lcm(columnTileY, (inputBlockSize[1] + blockSize[1] - 1) / blockSize[1]);
+	}
+
+	private static int lcm(final int a, final int b) {
+
+		int m = a;
+		while (m % b != 0)
+			m += a;
+
+		return m;
+	}
+
+	/**
+	 * Records finished blocks of all levels in manifests below a directory,
+	 * named after the datasets. Has to be called after
+	 * {@link #createOutput} and before {@link #schedule}.
+	 *
+	 * @param directory the manifest directory
+	 * @param resume skip the blocks that existing manifests record as done
+	 * @param verify check that blocks recorded as done exist in the output
+	 * @throws IOException
+	 */
+	public void openManifests(final File directory, final boolean resume, final boolean verify) throws IOException {
+
+		manifest = openManifest(directory, outputDataset, outputAttributes, grid, resume, verify);
+		if (pyramid != null)
+			for (int l = 1; l < pyramid.numLevels(); l++)
+				pyramid.setManifest(l, openManifest(directory, pyramid.getDataset(l), pyramid.getAttributes(l), pyramid.getGrid(l), resume, verify));
+	}
+
+	private BlockManifest openManifest(
+			final File directory,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final BlockGrid grid,
+			final boolean resume,
+			final boolean verify) throws IOException {
+
+		// every part records its own blocks
+		final String name = numParts > 1 ? dataset + ".part" + part + "of" + numParts : dataset;
+		final BlockManifest m = new BlockManifest(new File(directory, name + ".manifest"), grid.numBlocks(), resume);
+		if (resume && verify) {
+			final long cleared = m.verify(n5w, dataset, attributes, grid);
+			if (cleared > 0)
+				System.out.println(dataset + ": " + cleared + " blocks recorded as done are missing, writing them again");
+		}
+		if (resume)
+			System.out.println(dataset + ": resuming with " + m.numDone() + " of " + m.numBlocks() + " blocks done");
+
+		return m;
+	}
+
+	/**
+	 * Closes the manifests and the input. Called when the last block of this
+	 * process is written, and again at the end of a run.
+	 */
+	public synchronized void close() {
+
+		if (closed)
+			return;
+
+		closeManifests();
+		if (stack != null) {
+			try {
+				stack.close();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+		closed = true;
+	}
+
+	public synchronized void closeManifests() {
+
+		if (manifestsClosed)
+			return;
+
+		if (manifest != null)
+			manifest.close();
+
+		if (pyramid != null)
+			pyramid.closeManifests();
+
+		manifestsClosed = true;
+	}
+
+	/**
+	 * @return a name for the grid and order of the schedule, positions of
+	 *         schedules with different names are different blocks
+	 */
+	public String scheduleLayout() {
+		return WorkClaims.layout(grid.getDimensions(), grid.getBlockSize()) + "-tile" + columnTileX + "x" + columnTileY;
+	}
+
+	/**
+	 * Output blocks are scheduled in tiles of columns, and within a tile
+	 * layer by layer in z, so that consecutive blocks share most of their
+	 * input blocks. A tile covers whole input blocks and, when downsampled
+	 * levels are written, whole blocks of the coarsest level, so
+	 * that input blocks are released and pending downsampled blocks are
+	 * completed early. With tiles of one column, z varies fastest.
+	 *
+	 * @param position the position in the schedule
+	 * @return the index of the output block
+	 */
+	public long blockAt(final long position) {
+
+		final long[] gridDimensions = grid.getGridDimensions();
+		final long[] gridPosition = new long[gridDimensions.length];
+
+		// rows of tiles, then tiles, then layers of a tile, then columns within a layer
+		final long gx = gridDimensions[0];
+		final long gy = gridDimensions[1];
+		final long gz = gridDimensions[2];
+		final long tileRow = position / (gx * columnTileY * gz);
+		final long h = Math.min(columnTileY, gy - tileRow * columnTileY);
+		final long r = position % (gx * columnTileY * gz);
+		final long tileColumn = r / (columnTileX * h * gz);
+		final long w = Math.min(columnTileX, gx - tileColumn * columnTileX);
+		final long i = r % (columnTileX * h * gz);
+		final long j = i % (w * h);
+		gridPosition[0] = tileColumn * columnTileX + j % w;
+		gridPosition[1] = tileRow * columnTileY + j / w;
+		gridPosition[2] = i / (w * h);
+		return grid.index(gridPosition);
+	}
+
+	/**
+	 * Computes the exact z-halo of every column of output blocks from the
+	 * per-column offsets, and registers every output block as a consumer of
+	 * the input blocks it reads. Has to be called before blocks are
+	 * prefetched or written.
+	 * <p>
+	 * Without a resampler, blocks are copied from the corrected image and
+	 * input is not scheduled.
+	 */
+	public void schedule() {
+
+		schedule(firstPosition(), endPosition());
+	}
+
+	/**
+	 * Schedules the blocks at a range of positions of the schedule, see
+	 * {@link #schedule()}. Blocks outside of the scheduled ranges must not
+	 * be prefetched or written.
+	 *
+	 * @param from the first position
+	 * @param to the position after the last position
+	 */
+	public void schedule(final long from, final long to) {
+
+		if (haloMin == null)
+			computeHalos();
+
+		scheduleBlocks(from, to);
+		for (final SetupCorrection<T> channel : channels) {
+			channel.haloMin = haloMin;
+			channel.haloMax = haloMax;
+			channel.scheduleBlocks(from, to);
+		}
+	}
+
+	private void computeHalos() {
+
+		final long[] gridDimensions = grid.getGridDimensions();
+		final int numColumns = resampler == null ? 0 : (int)(gridDimensions[0] * gridDimensions[1]);
+		haloMin = new int[numColumns];
+		haloMax = new int[numColumns];
+
+		final long[] gridPosition = new long[gridDimensions.length];
+		for (int c = 0; c < numColumns; c++) {
+			gridPosition[0] = c % gridDimensions[0];
+			gridPosition[1] = c / gridDimensions[0];
+			final ColumnWeights weights = resampler.weights(grid.blockInterval(gridPosition));
+			haloMin[c] = weights.minOffset();
+			haloMax[c] = weights.maxOffset();
+		}
+	}
+
+	/**
+	 * Marks that no more blocks of this setup are scheduled by this process,
+	 * so it is closed once the scheduled blocks are written.
+	 */
+	public void scheduleComplete() {
+
+		synchronized (this) {
+			scheduleComplete = true;
+		}
+		closeIfDone();
+		for (final SetupCorrection<T> channel : channels)
+			channel.scheduleComplete();
+	}
+
+	private synchronized void closeIfDone() {
+
+		if (scheduleComplete && written.get() == scheduled)
+			close();
+	}
+
+	private void scheduleBlocks(final long from, final long to) {
+
+		synchronized (this) {
+			scheduled += to - from;
+		}
+
+		final long[] gridPosition = new long[grid.getGridDimensions().length];
+		for (long p = from; p < to; p++) {
+			final long i = blockAt(p);
+			grid.gridPosition(i, gridPosition);
+			if (manifest != null && manifest.isDone(i)) {
+				if (pyramid == null || pyramid.ancestorsDone(gridPosition))
+					skipped.set((int)i);
+				else
+					readBack.set((int)i);
+				continue;
+			}
+			if (resampler != null) {
+				if (predictedEmpty(gridPosition)) {
+					empty.set((int)i);
+					continue;
+				}
+				for (final long inputBlock : inputCache.blockIndices(sourceInterval(gridPosition)))
+					inputCache.register(inputBlock);
+			}
+		}
+
+		// claimed ranges are too small to be worth a line each
+		if (from != firstPosition() || to != endPosition())
+			return;
+
+		if (empty.cardinality() > 0)
+			System.out.println(String.format("setup %d: %d blocks map entirely outside of the input, skipping them",
+					setupId, empty.cardinality()));
+
+		if (manifest != null && (skipped.cardinality() > 0 || readBack.cardinality() > 0))
+			System.out.println(String.format("setup %d: skipping %d finished blocks, reading back %d blocks for downsampling",
+					setupId, skipped.cardinality(), readBack.cardinality()));
+	}
+
+	private boolean isDone(final long index) {
+		return skipped.get((int)index) || readBack.get((int)index) || empty.get((int)index);
+	}
+
+	/**
+	 * @return whether the input of a block, including its halo, lies
+	 *         entirely above or below the input, so the block is zero
+	 */
+	private boolean predictedEmpty(final long[] gridPosition) {
+
+		final Interval sourceInterval = sourceInterval(gridPosition);
+		return sourceInterval.max(2) < 0 || sourceInterval.min(2) >= inputAttributes.getDimensions()[2];
+	}
+
+	private Interval sourceInterval(final long[] gridPosition) {
+
+		final Interval blockInterval = grid.blockInterval(gridPosition);
+		final int c = (int)(gridPosition[1] * grid.getGridDimensions()[0] + gridPosition[0]);
+		return new FinalInterval(
+				new long[]{blockInterval.min(0), blockInterval.min(1), blockInterval.min(2) + haloMin[c]},
+				new long[]{blockInterval.max(0), blockInterval.max(1), blockInterval.max(2) + haloMax[c]});
+	}
+
+	public void prefetch(final long index, final Executor executor) {
+
+		for (final SetupCorrection<T> channel : channels)
+			channel.prefetch(index, executor);
+
+		if (isDone(index) || resampler == null)
+			return;
+
+		for (final long inputBlock : inputCache.blockIndices(sourceInterval(grid.gridPosition(index))))
+			inputCache.prefetch(inputBlock, executor);
+	}
+
+	/**
+	 * Writes a block of this setup and the same block of its other channels.
+	 */
+	public void writeBlock(final long index) {
+
+		ColumnWeights weights = writeBlock(index, null);
+		for (final SetupCorrection<T> channel : channels)
+			weights = channel.writeBlock(index, weights);
+	}
+
+	/**
+	 * @param weights the weights of the block if they are known, or null
+	 * @return the weights of the block if they are known, or null
+	 */
+	private ColumnWeights writeBlock(final long index, ColumnWeights weights) {
+
+		final long[] gridPosition = grid.gridPosition(index);
+		final Interval blockInterval = grid.blockInterval(gridPosition);
+
+		if (empty.get((int)index)) {
+			stats.emptyBlockSkipped();
+			storeEmpty(index, gridPosition);
+			return weights;
+		}
+
+		if (isDone(index)) {
+			if (readBack.get((int)index)) {
+				final long t = CorrectionStats.now();
+				final RandomAccessibleInterval<T> block = readOutput(blockInterval);
+				pyramid.add(0, gridPosition, block);
+				final long blockVoxels = block.dimension(0) * block.dimension(1) * block.dimension(2);
+				stats.record(Stage.DOWNSAMPLE, t, blockVoxels * bytesPerElement, blockVoxels);
+			}
+
+			finished();
+			return weights;
+		}
+
+		if (resampler == null) {
+			writeBlockFromView(index, gridPosition, blockInterval);
+			return weights;
+		}
+
+		// copy the input this block needs from the shared input blocks
+		long t = CorrectionStats.now();
+		final Interval sourceInterval = sourceInterval(gridPosition);
+		final long[] inputBlocks = inputCache.blockIndices(sourceInterval);
+		// fill leaves the parts outside of the input untouched
+		final ArrayImg<T, ?> slab = acquire(sourceInterval.dimensionsAsLongArray(), true);
+		final Object slabData = ((ArrayDataAccess<?>)slab.update(null)).getCurrentStorageArray();
+		inputCache.fill(sourceInterval, slabData, inputBlocks);
+		for (final long inputBlock : inputBlocks)
+			inputCache.release(inputBlock);
+
+		// on the copy, so the shared input blocks stay raw
+		if (flatField != null)
+			flatField.apply(slabData, sourceInterval, inputAttributes.getDimensions()[2], inputAttributes.getDataType());
+
+		final long slabVoxels = slab.size();
+		stats.record(Stage.FILL, t, slabVoxels * bytesPerElement, slabVoxels);
+
+		t = CorrectionStats.now();
+		// every voxel of the block is resampled
+		final ArrayImg<T, ?> block = acquire(
+				new long[]{blockInterval.dimension(0), blockInterval.dimension(1), blockInterval.dimension(2)}, false);
+		if (weights == null)
+			weights = resampler.weights(blockInterval);
+
+		resampler.resample(slab, sourceInterval.min(2), weights, block, blockInterval.min(2), inputAttributes.getDataType());
+		if (pool != null)
+			pool.release(type, slab);
+
+		final long blockVoxels = block.size();
+		stats.record(Stage.RESAMPLE, t, blockVoxels * bytesPerElement, blockVoxels);
+
+		store(index, gridPosition, block);
+		return weights;
+	}
+
+	/**
+	 * Computes a block by copying it from the corrected image.
+	 */
+	private void writeBlockFromView(final long index, final long[] gridPosition, final Interval blockInterval) {
+
+		final long t = CorrectionStats.now();
+		final ArrayImg<T, ?> block = copy(Views.hyperSlice(Views.hyperSlice(correctedImg, 4, 0), 3, 0), blockInterval);
+		final long blockVoxels = block.size();
+		stats.record(Stage.RESAMPLE, t, blockVoxels * bytesPerElement, blockVoxels);
+
+		store(index, gridPosition, block);
+	}
+
+	private ArrayImg<T, ?> acquire(final long[] dimensions, final boolean clear) {
+
+		if (pool == null)
+			return new ArrayImgFactory<>(type).create(dimensions);
+
+		return pool.acquire(type, dimensions, clear);
+	}
+
+	/**
+	 * Writes a computed block, or omits it if it is zero. The block is
+	 * returned to the pool when it is written.
+	 */
+	private void store(final long index, final long[] gridPosition, final ArrayImg<T, ?> block) {
+
+		if (isZero(((ArrayDataAccess<?>)block.update(null)).getCurrentStorageArray())) {
+			stats.zeroBlockOmitted();
+			if (pool != null)
+				pool.release(type, block);
+
+			storeEmpty(index, gridPosition);
+			return;
+		}
+
+		// the pyramid copies what it needs before the block is recycled
+		final long blockVoxels = block.size();
+		if (pyramid != null) {
+			final long t = CorrectionStats.now();
+			pyramid.add(0, gridPosition, block);
+			stats.record(Stage.DOWNSAMPLE, t, blockVoxels * bytesPerElement, blockVoxels);
+		}
+
+		final Runnable write = () -> {
+			final long t = CorrectionStats.now();
+			final Object data = ((ArrayDataAccess<?>)block.update(null)).getCurrentStorageArray();
+			final int[] size = new int[]{(int)block.dimension(0), (int)block.dimension(1), (int)block.dimension(2), 1, 1};
+			if (shardWriter != null)
+				shardWriter.writeShard(shardArray, gridPosition, data, size);
+			else
+				n5w.writeBlock(outputDataset, outputAttributes, dataBlock(size, gridPosition, data));
+
+			if (manifest != null)
+				manifest.markDone(index);
+
+			stats.record(Stage.WRITE, t, blockVoxels * bytesPerElement, blockVoxels);
+			if (pool != null)
+				pool.release(type, block);
+
+			finished();
+		};
+
+		if (writeBehind != null)
+			writeBehind.submit(write);
+		else
+			write.run();
+	}
+
+	/**
+	 * @return a block that wraps the primitive array of an image
+	 */
+	private static DataBlock<?> dataBlock(final int[] size, final long[] gridPosition, final Object data) {
+
+		if (data instanceof short[])
+			return new ShortArrayDataBlock(size, gridPosition, (short[])data);
+		if (data instanceof byte[])
+			return new ByteArrayDataBlock(size, gridPosition, (byte[])data);
+		if (data instanceof int[])
+			return new IntArrayDataBlock(size, gridPosition, (int[])data);
+		if (data instanceof long[])
+			return new LongArrayDataBlock(size, gridPosition, (long[])data);
+		if (data instanceof float[])
+			return new FloatArrayDataBlock(size, gridPosition, (float[])data);
+
+		return new DoubleArrayDataBlock(size, gridPosition, (double[])data);
+	}
+
+	/**
+	 * Leaves out an empty block, readers return the fill value (zero) for it.
+	 */
+	private void storeEmpty(final long index, final long[] gridPosition) {
+
+		// a stale block of an earlier run would be read instead of the fill value
+		if (outputExisted && shardWriter != null)
+			shardWriter.deleteShard(shardArray, gridPosition);
+		else if (outputExisted)
+			n5w.deleteBlock(outputDataset, gridPosition);
+
+		if (manifest != null)
+			manifest.markOmitted(index);
+
+		if (pyramid != null)
+			pyramid.addEmpty(0, gridPosition);
+
+		finished();
+	}
+
+	/**
+	 * @param array a primitive array
+	 * @return whether all elements are zero
+	 */
+	public static boolean isZero(final Object array) {
+
+		if (array instanceof short[]) {
+			for (final short v : (short[])array)
+				if (v != 0)
+					return false;
+		} else if (array instanceof byte[]) {
+			for (final byte v : (byte[])array)
+				if (v != 0)
+					return false;
+		} else if (array instanceof int[]) {
+			for (final int v : (int[])array)
+				if (v != 0)
+					return false;
+		} else if (array instanceof long[]) {
+			for (final long v : (long[])array)
+				if (v != 0)
+					return false;
+		} else if (array instanceof float[]) {
+			for (final float v : (float[])array)
+				if (v != 0)
+					return false;
+		} else if (array instanceof double[]) {
+			for (final double v : (double[])array)
+				if (v != 0)
+					return false;
+		} else
+			return false;
+
+		return true;
+	}
+
+	private ArrayImg<T, ?> copy(final RandomAccessibleInterval<T> img, final Interval blockInterval) {
+
+		final ArrayImg<T, ?> block = new ArrayImgFactory<>(type).create(
+				blockInterval.dimension(0), blockInterval.dimension(1), blockInterval.dimension(2));
+		LoopBuilder.setImages(
+				Views.zeroMin(Views.interval(img,
+						new long[]{blockInterval.min(0), blockInterval.min(1), blockInterval.min(2)},
+						new long[]{blockInterval.max(0), blockInterval.max(1), blockInterval.max(2)})),
+				block).forEachPixel((s, t) -> t.set(s));
+
+		return block;
+	}
+
+	/**
+	 * Reads a written block of level 0.
+	 */
+	private RandomAccessibleInterval<T> readOutput(final Interval blockInterval) {
+
+		synchronized (this) {
+			if (outputImg == null)
+				outputImg = Views.hyperSlice(Views.hyperSlice(N5Utils.<T>open(n5w, outputDataset), 4, 0), 3, 0);
+		}
+
+		return copy(outputImg, blockInterval);
+	}
+
+	private void finished() {
+
+		stats.blockDone();
+
+		if (written.incrementAndGet() == endPosition() - firstPosition()) {
+			System.out.println(String.format("%s done: read %d of %d input blocks, %d hits, %d misses, %d bytes",
+					outputGroup, inputCache.getReads(), inputCache.getDistinctBlocks(),
+					inputCache.getHits(), inputCache.getMisses(), inputCache.getBytesRead()));
+
+		}
+
+		// a long run does not keep the manifests and input of finished setups open
+		closeIfDone();
+	}
+
+	/**
+	 * @param stats the stats to record the stages of this setup in, can be
+	 *        shared by several setups
+	 */
+	public void setStats(final CorrectionStats stats) {
+
+		this.stats = stats;
+		if (inputCache != null)
+			inputCache.setStats(stats);
+	}
+
+	public InputBlockCache getInputCache() {
+		return inputCache;
+	}
+
+}
@@ -0,0 +1,355 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+/**
+ * An uncompressed, single channel TIFF or BigTIFF stack whose planes are
+ * memory mapped as the chunks of a (width, height, 1) grid.
+ * <p>
+ * The file is mapped in a few large windows instead of strip by strip, so
+ * that a stack needs few mappings however small its strips are. Planes
+ * whose strips are not contiguous in the file are read instead.
+ * <p>
+ * The image file directories (IFDs) are parsed once when the stack is
+ * opened. Stacks that ImageJ writes with a single IFD and "images=n" in the
+ * image description store their planes one after the other behind the
+ * first one, which is how ImageJ writes stacks larger than 4GB as classic
+ * TIFF.
+ */
+public class TiffStack implements ChunkMapper {
+
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int IMAGE_DESCRIPTION = 270;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int ROWS_PER_STRIP = 278;
+	private static final int TILE_WIDTH = 322;
+	private static final int SAMPLE_FORMAT = 339;
+
+	// windows start every WINDOW_STEP bytes and overlap by one plane, so
+	// that every plane lies entirely inside of one window
+	private static final long WINDOW_STEP = 1L << 30;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final ByteOrder order;
+	private final boolean bigTiff;
+
+	private int width;
+	private int height;
+	private int rowsPerStrip;
+	private DataType dataType;
+
+	// strip offsets of every plane
+	private final List<long[]> planes = new ArrayList<>();
+	private final HashMap<Long, MappedByteBuffer> windows = new HashMap<>();
+
+	/**
+	 * Opens a stack and parses its IFDs.
+	 *
+	 * @param path the TIFF file
+	 * @throws IOException if the file is not an uncompressed single channel
+	 *         TIFF stack
+	 */
+	public TiffStack(final String path) throws IOException {
+
+		this.path = Paths.get(path);
+		channel = FileChannel.open(this.path, StandardOpenOption.READ);
+
+		final ByteBuffer header = read(0, 16);
+		final String byteOrder = "" + (char)header.get(0) + (char)header.get(1);
+		if (byteOrder.equals("II"))
+			order = ByteOrder.LITTLE_ENDIAN;
+		else if (byteOrder.equals("MM"))
+			order = ByteOrder.BIG_ENDIAN;
+		else
+			throw new IOException(path + " is not a TIFF file");
+
+		header.order(order);
+		final int version = header.getShort(2);
+		if (version != 42 && version != 43)
+			throw new IOException(path + " is not a TIFF file");
+
+		bigTiff = version == 43;
+		long ifd = bigTiff ? header.getLong(8) : header.getInt(4) & 0xffffffffL;
+		while (ifd != 0)
+			ifd = readIfd(ifd);
+
+		if (planes.isEmpty())
+			throw new IOException(path + " has no images");
+
+		if (planeBytes() > Integer.MAX_VALUE - WINDOW_STEP)
+			throw new IOException(path + " has planes of more than " + (Integer.MAX_VALUE - WINDOW_STEP) + " bytes");
+	}
+
+	/**
+	 * Reads an IFD and adds its plane.
+	 *
+	 * @return the offset of the next IFD
+	 */
+	private long readIfd(final long offset) throws IOException {
+
+		final int countSize = bigTiff ? 8 : 2;
+		final int entrySize = bigTiff ? 20 : 12;
+		final long count = bigTiff ? read(offset, 8).getLong(0) : read(offset, 2).getShort(0) & 0xffff;
+		final ByteBuffer entries = read(offset + countSize, (int)(count * entrySize + (bigTiff ? 8 : 4)));
+
+		int w = 0, h = 0, bits = 8, compression = 1, samples = 1, format = 1;
+		int rows = Integer.MAX_VALUE;
+		long[] offsets = null;
+		String description = null;
+		for (int i = 0; i < count; i++) {
+			final int e = i * entrySize;
+			final int tag = entries.getShort(e) & 0xffff;
+			switch (tag) {
+			case IMAGE_WIDTH:
+				w = (int)values(entries, e)[0];
+				break;
+			case IMAGE_LENGTH:
+				h = (int)values(entries, e)[0];
+				break;
+			case BITS_PER_SAMPLE:
+				bits = (int)values(entries, e)[0];
+				break;
+			case COMPRESSION:
+				compression = (int)values(entries, e)[0];
+				break;
+			case IMAGE_DESCRIPTION:
+				description = ascii(entries, e);
+				break;
+			case STRIP_OFFSETS:
+				offsets = values(entries, e);
+				break;
+			case SAMPLES_PER_PIXEL:
+				samples = (int)values(entries, e)[0];
+				break;
+			case ROWS_PER_STRIP:
+				rows = (int)values(entries, e)[0];
+				break;
+			case TILE_WIDTH:
+				throw new IOException(path + " is tiled, only stripped TIFF is supported");
+			case SAMPLE_FORMAT:
+				format = (int)values(entries, e)[0];
+				break;
+			}
+		}
+
+		if (compression != 1)
+			throw new IOException(path + " is compressed, only uncompressed TIFF is supported");
+		if (samples != 1)
+			throw new IOException(path + " has " + samples + " samples per pixel, only single channel TIFF is supported");
+		if (offsets == null)
+			throw new IOException(path + " has no strips");
+
+		if (planes.isEmpty()) {
+			width = w;
+			height = h;
+			rowsPerStrip = Math.min(rows, h);
+			dataType = dataType(bits, format);
+		} else if (w != width || h != height || Math.min(rows, h) != rowsPerStrip || dataType(bits, format) != dataType)
+			throw new IOException(path + " has planes of different layouts");
+
+		planes.add(offsets);
+
+		// ImageJ stacks of more than 4GB have a single IFD
+		if (planes.size() == 1 && description != null) {
+			final Matcher m = Pattern.compile("images=(\\d+)").matcher(description);
+			if (m.find() && offsets.length == 1) {
+				final int n = Integer.parseInt(m.group(1));
+				final long next = bigTiff ? entries.getLong((int)count * entrySize) : entries.getInt((int)count * entrySize) & 0xffffffffL;
+				if (n > 1 && next == 0 && offsets[0] + n * planeBytes() <= channel.size()) {
+					for (int z = 1; z < n; z++)
+						planes.add(new long[]{offsets[0] + z * planeBytes()});
+					return 0;
+				}
+			}
+		}
+
+		return bigTiff ? entries.getLong((int)count * entrySize) : entries.getInt((int)count * entrySize) & 0xffffffffL;
+	}
+
+	private static DataType dataType(final int bits, final int format) throws IOException {
+
+		switch (bits * 4 + format) {
+		case 8 * 4 + 1:
+			return DataType.UINT8;
+		case 8 * 4 + 2:
+			return DataType.INT8;
+		case 16 * 4 + 1:
+			return DataType.UINT16;
+		case 16 * 4 + 2:
+			return DataType.INT16;
+		case 32 * 4 + 1:
+			return DataType.UINT32;
+		case 32 * 4 + 2:
+			return DataType.INT32;
+		case 32 * 4 + 3:
+			return DataType.FLOAT32;
+		case 64 * 4 + 3:
+			return DataType.FLOAT64;
+		default:
+			throw new IOException(bits + " bit samples of format " + format + " are not supported");
+		}
+	}
+
+	/**
+	 * @return the values of an IFD entry of type BYTE, SHORT, LONG or LONG8
+	 */
+	private long[] values(final ByteBuffer entries, final int e) throws IOException {
+
+		final int type = entries.getShort(e + 2) & 0xffff;
+		final long count = bigTiff ? entries.getLong(e + 4) : entries.getInt(e + 4) & 0xffffffffL;
+		final int size = type == 1 ? 1 : type == 3 ? 2 : type == 4 ? 4 : type == 16 ? 8 : 0;
+		if (size == 0)
+			throw new IOException("unsupported type " + type + " of tag " + (entries.getShort(e) & 0xffff));
+
+		final int valueOffset = e + (bigTiff ? 12 : 8);
+		final ByteBuffer data;
+		int base;
+		if (count * size <= (bigTiff ? 8 : 4)) {
+			// inline
+			data = entries;
+			base = valueOffset;
+		} else {
+			final long offset = bigTiff ? entries.getLong(valueOffset) : entries.getInt(valueOffset) & 0xffffffffL;
+			data = read(offset, (int)(count * size));
+			base = 0;
+		}
+
+		final long[] values = new long[(int)count];
+		for (int i = 0; i < count; i++, base += size) {
+			switch (size) {
+			case 1:
+				values[i] = data.get(base) & 0xff;
+				break;
+			case 2:
+				values[i] = data.getShort(base) & 0xffff;
+				break;
+			case 4:
+				values[i] = data.getInt(base) & 0xffffffffL;
+				break;
+			default:
+				values[i] = data.getLong(base);
+			}
+		}
+		return values;
+	}
+
+	private String ascii(final ByteBuffer entries, final int e) throws IOException {
+
+		final long count = bigTiff ? entries.getLong(e + 4) : entries.getInt(e + 4) & 0xffffffffL;
+		final int valueOffset = e + (bigTiff ? 12 : 8);
+		final byte[] bytes = new byte[(int)count];
+		if (count <= (bigTiff ? 8 : 4)) {
+			for (int i = 0; i < count; i++)
+				bytes[i] = entries.get(valueOffset + i);
+		} else {
+			final long offset = bigTiff ? entries.getLong(valueOffset) : entries.getInt(valueOffset) & 0xffffffffL;
+			read(offset, (int)count).get(bytes);
+		}
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	private ByteBuffer read(final long offset, final int length) throws IOException {
+
+		final ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, offset + buffer.position()) < 0)
+				throw new IOException(path + " ends at " + (offset + buffer.position()));
+
+		buffer.flip();
+		return buffer;
+	}
+
+	private long planeBytes() {
+		return (long)width * height * InputBlockCache.bytesPerElement(dataType);
+	}
+
+	/**
+	 * @return the attributes of the stack as a dataset with one chunk per
+	 *         plane
+	 */
+	public DatasetAttributes getAttributes() {
+
+		return new DatasetAttributes(
+				new long[]{width, height, planes.size()},
+				new int[]{width, height, 1},
+				dataType,
+				new RawCompression());
+	}
+
+	public String getPath() {
+		return path.toString();
+	}
+
+	@Override
+	public Chunk map(final long[] gridPosition) throws IOException {
+
+		final long[] offsets = planes.get((int)gridPosition[2]);
+		final long stripBytes = (long)width * rowsPerStrip * InputBlockCache.bytesPerElement(dataType);
+		final int numBytes = (int)planeBytes();
+		boolean contiguous = true;
+		for (int s = 1; s < offsets.length && contiguous; s++)
+			contiguous = offsets[s] == offsets[0] + s * stripBytes;
+
+		final ByteBuffer data;
+		if (contiguous) {
+			final long w = offsets[0] / WINDOW_STEP;
+			final ByteBuffer window = window(w).duplicate();
+			window.position((int)(offsets[0] - w * WINDOW_STEP));
+			window.limit(window.position() + numBytes);
+			data = window.slice();
+		} else {
+			data = ByteBuffer.allocate(numBytes);
+			for (int s = 0; s < offsets.length; s++) {
+				final int length = (int)Math.min(stripBytes, numBytes - s * stripBytes);
+				data.put(read(offsets[s], length));
+			}
+			data.flip();
+		}
+		return new Chunk(new int[]{width, height, 1}, data, order);
+	}
+
+	private synchronized ByteBuffer window(final long w) throws IOException {
+
+		MappedByteBuffer window = windows.get(w);
+		if (window == null) {
+			final long start = w * WINDOW_STEP;
+			final long size = Math.min(WINDOW_STEP + planeBytes(), channel.size() - start);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			windows.put(w, window);
+		}
+		return window;
+	}
+
+	/**
+	 * Closes the file. Chunks that were mapped stay valid until they are
+	 * garbage collected.
+	 */
+	public synchronized void close() throws IOException {
+
+		windows.clear();
+		channel.close();
+	}
+
+}
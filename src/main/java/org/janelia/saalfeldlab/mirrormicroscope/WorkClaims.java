@@ -0,0 +1,233 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ranges of output blocks that any number of processes claim through
+ * marker files in a shared directory, without any other service.
+ * <p>
+ * Range r of a dataset is claimed by creating the file
+ * {@code <dataset>/ranges-<layout>/r.<generation>.claim}, which succeeds
+ * for exactly one process. The holder touches its claim files while it
+ * works. A claim that has not been touched for the lease timeout is taken
+ * over by creating the next generation, so a range of a failed process is
+ * claimed by exactly one other process. {@code r.done} marks a range whose
+ * blocks are all written, and is kept for later runs. The layout names the
+ * grid, order and size of the ranges, so that the markers of a run with a
+ * different layout are not used.
+ * <p>
+ * The creation of an output is claimed the same way, as
+ * {@code <dataset>/output-<shape>/create.<generation>.claim}, and
+ * {@code created} is written once its metadata exists.
+ * <p>
+ * A holder that is slow rather than dead can still be writing a range that
+ * was taken over. Both write the same blocks, so this only costs time.
+ */
+public class WorkClaims {
+
+	private final Path directory;
+	private final long leaseMillis;
+	private final String owner;
+
+	private final Set<Claim> held = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService renewer;
+
+	/**
+	 * @param directory the shared directory
+	 * @param leaseMillis time after which a claim that was not renewed is
+	 *        taken over
+	 */
+	public WorkClaims(final String directory, final long leaseMillis) {
+
+		this.directory = Paths.get(directory);
+		this.leaseMillis = leaseMillis;
+		owner = ManagementFactory.getRuntimeMXBean().getName();
+
+		renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread t = new Thread(r, "work-claims");
+			t.setDaemon(true);
+			return t;
+		});
+		renewer.scheduleWithFixedDelay(this::renew, leaseMillis / 4, leaseMillis / 4, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return a name for the shape of an array, e.g. 2048x2048x1000-128x128x64
+	 */
+	public static String layout(final long[] dimensions, final int[] blockSize) {
+
+		final StringBuilder name = new StringBuilder();
+		for (int d = 0; d < 3; d++)
+			name.append(d == 0 ? "" : "x").append(dimensions[d]);
+		for (int d = 0; d < 3; d++)
+			name.append(d == 0 ? "-" : "x").append(blockSize[d]);
+
+		return name.toString();
+	}
+
+	/**
+	 * Waits until either another process created an output, or this process
+	 * claimed its creation. A process that claimed the creation and failed
+	 * before it was done is taken over after the lease timeout.
+	 *
+	 * @param dataset the output dataset
+	 * @param shape the shape of the output, see {@link #layout}
+	 * @return the claim if this process creates the output, call
+	 *         {@link Claim#done()} once its metadata is written, or null if
+	 *         the output was created
+	 * @throws IOException
+	 */
+	public Claim awaitCreation(final String dataset, final String shape) throws IOException {
+
+		final Path dir = directory.resolve(dataset).resolve("output-" + shape);
+		Files.createDirectories(dir);
+		boolean waiting = false;
+		while (true) {
+			final Claim claim = claim(dir, "create", dir.resolve("created"));
+			if (claim != null)
+				return claim;
+
+			if (Files.exists(dir.resolve("created")))
+				return null;
+
+			if (!waiting)
+				System.out.println(dataset + ": waiting for another process to create it");
+			waiting = true;
+
+			try {
+				Thread.sleep(1000);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Tries to claim a range of blocks.
+	 *
+	 * @param dataset the output dataset
+	 * @param layout the grid, order and size of the ranges
+	 * @param range the index of the range
+	 * @return the claim, or null if the range is done or held by another
+	 *         process whose lease is valid
+	 * @throws IOException
+	 */
+	public Claim claim(final String dataset, final String layout, final long range) throws IOException {
+
+		final Path dir = directory.resolve(dataset).resolve("ranges-" + layout);
+		Files.createDirectories(dir);
+		final Claim claim = claim(dir, Long.toString(range), dir.resolve(range + ".done"));
+		if (claim != null && claim.generation > 0)
+			System.out.println(dataset + ": took over range " + range + " after the lease of generation " + (claim.generation - 1) + " expired");
+
+		return claim;
+	}
+
+	/**
+	 * Claims name in dir unless it is done, or held by another process whose
+	 * lease is valid.
+	 */
+	private Claim claim(final Path dir, final String name, final Path done) throws IOException {
+
+		if (Files.exists(done))
+			return null;
+
+		int generation = 0;
+		while (Files.exists(claimFile(dir, name, generation)))
+			generation++;
+
+		if (generation > 0) {
+			try {
+				final long age = System.currentTimeMillis() - Files.getLastModifiedTime(claimFile(dir, name, generation - 1)).toMillis();
+				if (age < leaseMillis)
+					return null;
+			} catch (final NoSuchFileException e) {
+				return null;
+			}
+		}
+
+		final Path file = claimFile(dir, name, generation);
+		try {
+			Files.write(file, owner.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+		} catch (final FileAlreadyExistsException e) {
+			return null;
+		}
+
+		// done while the claim was created
+		if (Files.exists(done)) {
+			Files.deleteIfExists(file);
+			return null;
+		}
+
+		final Claim claim = new Claim(file, generation, done);
+		held.add(claim);
+		return claim;
+	}
+
+	private static Path claimFile(final Path dir, final String name, final int generation) {
+		return dir.resolve(name + "." + generation + ".claim");
+	}
+
+	private void renew() {
+
+		final FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		for (final Claim claim : held) {
+			try {
+				Files.setLastModifiedTime(claim.file, now);
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stops renewing, claims that are still held expire.
+	 */
+	public void close() {
+		renewer.shutdownNow();
+	}
+
+	public class Claim {
+
+		private final Path file;
+		public final int generation;
+		private final Path done;
+
+		Claim(final Path file, final int generation, final Path done) {
+
+			this.file = file;
+			this.generation = generation;
+			this.done = done;
+		}
+
+		/**
+		 * Marks the claimed work as done and releases the claim.
+		 */
+		public void done() {
+
+			try {
+				Files.write(done, owner.getBytes(StandardCharsets.UTF_8));
+			} catch (final IOException e) {
+				// the work is done again after the lease expires
+				e.printStackTrace();
+			}
+			held.remove(this);
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Compresses and writes finished blocks on dedicated I/O threads, so that
+ * the threads that compute blocks do not wait for the file system.
+ * <p>
+ * At most a fixed number of writes are queued or running. Submitting more
+ * waits until one of them is done, which bounds the memory of blocks in
+ * flight.
+ */
+public class WriteBehind {
+
+	private final ExecutorService exec;
+	private final Semaphore slots;
+
+	private long pending = 0;
+	private Throwable failure = null;
+
+	/**
+	 * @param numThreads the number of I/O threads
+	 * @param capacity the number of writes that can wait for a thread
+	 */
+	public WriteBehind(final int numThreads, final int capacity) {
+
+		exec = Executors.newFixedThreadPool(numThreads, r -> {
+			final Thread t = new Thread(r, "write-behind");
+			t.setDaemon(true);
+			return t;
+		});
+		slots = new Semaphore(numThreads + capacity);
+	}
+
+	/**
+	 * Queues a write, waiting while the queue is full.
+	 *
+	 * @param write encodes and writes a block
+	 */
+	public void submit(final Runnable write) {
+
+		slots.acquireUninterruptibly();
+		synchronized (this) {
+			pending++;
+		}
+		exec.execute(() -> {
+			try {
+				write.run();
+			} catch (final Throwable e) {
+				e.printStackTrace();
+				synchronized (this) {
+					if (failure == null)
+						failure = e;
+				}
+			} finally {
+				slots.release();
+				synchronized (this) {
+					if (--pending == 0)
+						notifyAll();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits until all queued writes are done.
+	 *
+	 * @throws RuntimeException if a write failed
+	 */
+	public synchronized void flush() {
+
+		while (pending > 0) {
+			try {
+				wait();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+
+		if (failure != null)
+			throw new RuntimeException("writing a block failed", failure);
+	}
+
+	public void close() {
+
+		flush();
+		exec.shutdown();
+	}
+
+}
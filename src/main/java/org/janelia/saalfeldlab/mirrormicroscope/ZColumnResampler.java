@@ -0,0 +1,303 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import org.janelia.saalfeldlab.mirrormicroscope.ColumnWeights.Interpolation;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Resamples an image that is distorted only along z by an amount that
+ * depends on (x,y).
+ * <p>
+ * Instead of transforming and interpolating every voxel in 3D, the shift is
+ * computed once per (x,y) column and the output is interpolated along z
+ * only. Blocks are processed plane by plane with x varying fastest, reading
+ * from a copy of the source slab the block needs.
+ * <p>
+ * With linear interpolation, gives the same result as
+ * {@code RealViews.transform(Views.interpolate(Views.extendZero(source), new NLinearInterpolatorFactory<>()), transform)}
+ * for a transform with the given {@link ZOffsets}. Higher order kernels
+ * cost one multiply-add per tap.
+ */
+public class ZColumnResampler<T extends NumericType<T> & NativeType<T>> {
+
+	private final RandomAccessibleInterval<T> source;
+	private final RandomAccessible<T> extendedSource;
+	private final ZOffsets offsets;
+	private final Interpolation interpolation;
+	private final T type;
+
+	public ZColumnResampler(final RandomAccessibleInterval<T> source, final ZOffsets offsets) {
+
+		this(source, offsets, Interpolation.LINEAR);
+	}
+
+	public ZColumnResampler(final RandomAccessibleInterval<T> source, final ZOffsets offsets, final Interpolation interpolation) {
+
+		this.source = source;
+		this.offsets = offsets;
+		this.interpolation = interpolation;
+		extendedSource = Views.extendZero(source);
+		type = source.getType().createVariable();
+	}
+
+	public Interpolation getInterpolation() {
+		return interpolation;
+	}
+
+	public RandomAccessibleInterval<T> getSource() {
+		return source;
+	}
+
+	public ZOffsets getOffsets() {
+		return offsets;
+	}
+
+	/**
+	 * @param target a 3d interval of the output
+	 * @return the weights for the columns of the target
+	 */
+	public ColumnWeights weights(final Interval target) {
+
+		return ColumnWeights.create(interpolation, offsets,
+				target.min(0), target.min(1),
+				(int)target.dimension(0), (int)target.dimension(1));
+	}
+
+	/**
+	 * @param target a 3d interval of the output
+	 * @param weights the weights for the target columns
+	 * @return the interval of the source that is read to compute target
+	 */
+	public static Interval sourceInterval(final Interval target, final ColumnWeights weights) {
+
+		return new FinalInterval(
+				new long[]{target.min(0), target.min(1), target.min(2) + weights.minOffset()},
+				new long[]{target.max(0), target.max(1), target.max(2) + weights.maxOffset()});
+	}
+
+	/**
+	 * Resamples the part of the output given by the target's interval into
+	 * target.
+	 *
+	 * @param target a 3d output block
+	 */
+	public void resample(final RandomAccessibleInterval<T> target) {
+
+		final ColumnWeights weights = weights(target);
+		final Interval slabInterval = sourceInterval(target, weights);
+		final ArrayImg<T, ?> slab = new ArrayImgFactory<>(type).create(slabInterval.dimensionsAsLongArray());
+		LoopBuilder.setImages(Views.zeroMin(Views.interval(extendedSource, slabInterval)), slab).forEachPixel((s, t) -> t.set(s));
+
+		resample(slab, slabInterval.min(2), weights, target);
+	}
+
+	/**
+	 * Resamples the part of the output at min into block, with a kernel for
+	 * the data type if there is one.
+	 *
+	 * @param block a zero-min 3d output block
+	 * @param min the output position of the first voxel of the block
+	 * @param dataType the data type of source and block
+	 */
+	public void resample(final ArrayImg<T, ?> block, final long[] min, final DataType dataType) {
+
+		final Interval target = new FinalInterval(min, new long[]{
+				min[0] + block.dimension(0) - 1,
+				min[1] + block.dimension(1) - 1,
+				min[2] + block.dimension(2) - 1});
+		final ColumnWeights weights = weights(target);
+		final Interval slabInterval = sourceInterval(target, weights);
+		final ArrayImg<T, ?> slab = new ArrayImgFactory<>(type).create(slabInterval.dimensionsAsLongArray());
+		LoopBuilder.setImages(Views.zeroMin(Views.interval(extendedSource, slabInterval)), slab).forEachPixel((s, t) -> t.set(s));
+
+		resample(slab, slabInterval.min(2), weights, block, min[2], dataType);
+	}
+
+	/**
+	 * Resamples target from a copy of the source.
+	 *
+	 * @param slab the source over the target's (x,y) footprint, zero-min
+	 * @param slabMinZ the source z of the first plane of the slab
+	 * @param weights the weights for the target columns
+	 * @param target a 3d output block
+	 */
+	public void resample(
+			final RandomAccessibleInterval<T> slab,
+			final long slabMinZ,
+			final ColumnWeights weights,
+			final RandomAccessibleInterval<T> target) {
+
+		final RandomAccess<T> in = slab.randomAccess();
+		final RandomAccess<T> out = target.randomAccess();
+		final T sum = type.createVariable();
+		final T tmp = type.createVariable();
+
+		final int nt = weights.numTaps;
+		final long x0 = target.min(0);
+		final long y0 = target.min(1);
+		final int sx = weights.sizeX;
+		final int sy = weights.sizeY;
+		for (long z = target.min(2); z <= target.max(2); z++) {
+			out.setPosition(z, 2);
+			for (int y = 0; y < sy; y++) {
+				out.setPosition(y0 + y, 1);
+				in.setPosition(y, 1);
+				for (int x = 0; x < sx; x++) {
+					final int i = y * sx + x;
+					in.setPosition(x, 0);
+					in.setPosition(z + weights.offsets[i] - slabMinZ, 2);
+					sum.setZero();
+					for (int k = 0; k < nt; k++) {
+						tmp.set(in.get());
+						tmp.mul(weights.weights[i * nt + k]);
+						sum.add(tmp);
+						in.fwd(2);
+					}
+					out.setPosition(x0 + x, 0);
+					out.get().set(sum);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resamples a block from a copy of the source, with a kernel for the
+	 * data type if there is one. uint16 data is resampled directly on the
+	 * backing arrays, other types with {@link #resample(RandomAccessibleInterval, long, ColumnWeights, RandomAccessibleInterval)}.
+	 *
+	 * @param slab the source over the block's (x,y) footprint, zero-min
+	 * @param slabMinZ the source z of the first plane of the slab
+	 * @param weights the weights for the block columns
+	 * @param block the zero-min output block
+	 * @param blockMinZ the output z of the first plane of the block
+	 * @param dataType the data type of source and block
+	 */
+	public void resample(
+			final ArrayImg<T, ?> slab,
+			final long slabMinZ,
+			final ColumnWeights weights,
+			final ArrayImg<T, ?> block,
+			final long blockMinZ,
+			final DataType dataType) {
+
+		if (dataType == DataType.UINT16)
+			resampleUnsignedShort(
+					(short[])((ArrayDataAccess<?>)slab.update(null)).getCurrentStorageArray(), slabMinZ, weights,
+					(short[])((ArrayDataAccess<?>)block.update(null)).getCurrentStorageArray(), blockMinZ, (int)block.dimension(2));
+		else
+			resample(slab, slabMinZ, weights, Views.translate(block, weights.minX, weights.minY, blockMinZ));
+	}
+
+	/**
+	 * Resamples a uint16 block from a copy of the source. As with the
+	 * {@link net.imglib2.type.numeric.integer.UnsignedShortType} arithmetic
+	 * of the generic path, every tap is rounded and the sum wraps around, so
+	 * that both give identical blocks.
+	 *
+	 * @param slab the source over the block's (x,y) footprint, x varying fastest
+	 * @param slabMinZ the source z of the first plane of the slab
+	 * @param weights the weights for the block columns
+	 * @param block the output block, x varying fastest
+	 * @param blockMinZ the output z of the first plane of the block
+	 * @param blockSizeZ the number of planes of the block
+	 */
+	public static void resampleUnsignedShort(
+			final short[] slab,
+			final long slabMinZ,
+			final ColumnWeights weights,
+			final short[] block,
+			final long blockMinZ,
+			final int blockSizeZ) {
+
+		final int nt = weights.numTaps;
+		final int sx = weights.sizeX;
+		final int plane = sx * weights.sizeY;
+		final int[] offsets = weights.offsets;
+		final double[] w = weights.weights;
+		final int dz0 = (int)(blockMinZ - slabMinZ);
+
+		int o = 0;
+		for (int z = 0; z < blockSizeZ; z++) {
+			for (int i = 0; i < plane; i++, o++) {
+				int s = (z + dz0 + offsets[i]) * plane + i;
+				final int wi = i * nt;
+				int sum = 0;
+				for (int k = 0; k < nt; k++, s += plane)
+					sum += (int)Util.round((slab[s] & 0xffff) * w[wi + k]);
+
+				block[o] = (short)sum;
+			}
+		}
+	}
+
+	/**
+	 * A lazily resampled image over the source interval, computed cell by
+	 * cell.
+	 *
+	 * @param cellSize the cell size
+	 * @return the corrected image
+	 */
+	public CachedCellImg<T, ?> view(final int[] cellSize) {
+
+		return view(source.dimensionsAsLongArray(), cellSize);
+	}
+
+	/**
+	 * A lazily resampled zero-min image of the given size, computed cell by
+	 * cell.
+	 *
+	 * @param dimensions the dimensions of the output
+	 * @param cellSize the cell size
+	 * @return the corrected image
+	 */
+	public CachedCellImg<T, ?> view(final long[] dimensions, final int[] cellSize) {
+
+		return new ReadOnlyCachedCellImgFactory(ReadOnlyCachedCellImgOptions.options().cellDimensions(cellSize))
+				.create(dimensions, type, cell -> resample(cell));
+	}
+
+	/**
+	 * The range of output z that reads any plane of a source with depth nz,
+	 * for columns whose offsets lie in [minDz, maxDz]. Outside of it, every
+	 * tap of the kernel falls outside of the source.
+	 *
+	 * @param interpolation the kernel
+	 * @param minDz the smallest offset
+	 * @param maxDz the largest offset
+	 * @param nz the depth of the source
+	 * @return min and max output z
+	 */
+	public static long[] dataRangeZ(final Interpolation interpolation, final double minDz, final double maxDz, final long nz) {
+
+		final int n = interpolation.numTaps;
+
+		// the last tap of the column with the smallest offset reaches 0
+		long min = (long)Math.floor(minDz) - n;
+		while (interpolation.firstTap(min - minDz) + n - 1 < 0)
+			min++;
+
+		// the first tap of the column with the largest offset is below nz
+		long max = (long)Math.ceil(maxDz) + nz + n;
+		while (interpolation.firstTap(max - maxDz) > nz - 1)
+			max--;
+
+		return new long[]{min, max};
+	}
+
+}
@@ -0,0 +1,225 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.imglib2.realtransform.ScaleAndTranslation;
+
+/**
+ * The z-offsets of the distortion correction of one camera, precomputed for
+ * every pixel of the sensor.
+ * <p>
+ * The correction chain (camera to image, distortion, image to camera,
+ * normalization) is identical for all setups of a camera, so tables are
+ * kept in a small LRU cache keyed by camera, radius and inverse flag
+ * (and the camera geometry, so models with different resolutions do not
+ * collide). The normalization offset centers the offsets of the sensor
+ * corners around zero, as in {@link Normalization#minMaxOffsetsCorners}.
+ */
+public class ZOffsetTable implements ZOffsets {
+
+	public static final int DEFAULT_CACHE_SIZE = 4;
+
+	private static int cacheSize = DEFAULT_CACHE_SIZE;
+
+	private static final LinkedHashMap<Key, ZOffsetTable> cache = new LinkedHashMap<Key, ZOffsetTable>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Key, ZOffsetTable> eldest) {
+			return size() > cacheSize;
+		}
+	};
+
+	public final int width;
+	public final int height;
+
+	private final float[] dz;
+
+	private final MirrorCorrectionTransform transform;
+	private final double normalizationOffset;
+	private final double[] minMaxCorners;
+	private final double[] minMax;
+
+	private ZOffsetTable(
+			final int width,
+			final int height,
+			final float[] dz,
+			final MirrorCorrectionTransform transform,
+			final double normalizationOffset,
+			final double[] minMaxCorners) {
+
+		this.width = width;
+		this.height = height;
+		this.dz = dz;
+		this.transform = transform;
+		this.normalizationOffset = normalizationOffset;
+		this.minMaxCorners = minMaxCorners;
+		minMax = transform.minMaxOffsets(0, 0, width - 1, height - 1);
+	}
+
+	/**
+	 * Returns the cached table for a camera, computing it if necessary.
+	 *
+	 * @param cameraModel the camera model
+	 * @param cameraId the camera
+	 * @param radius the radius of curvature
+	 * @param inverse whether the distortion is inverted
+	 * @param width the number of pixels in x
+	 * @param height the number of pixels in y
+	 * @return the table
+	 */
+	public static synchronized ZOffsetTable get(
+			final CameraModel cameraModel,
+			final int cameraId,
+			final double radius,
+			final boolean inverse,
+			final long width,
+			final long height) {
+
+		final Key key = new Key(cameraModel, cameraId, radius, inverse, (int)width, (int)height);
+		ZOffsetTable table = cache.get(key);
+		if (table == null) {
+			table = compute(cameraModel, cameraId, radius, inverse, (int)width, (int)height);
+			cache.put(key, table);
+		}
+		return table;
+	}
+
+	/**
+	 * Sets the number of tables that are kept, each of which needs
+	 * 4 * width * height bytes.
+	 *
+	 * @param size the maximum number of cached tables
+	 */
+	public static synchronized void setCacheSize(final int size) {
+
+		cacheSize = size;
+		while (cache.size() > cacheSize)
+			cache.remove(cache.keySet().iterator().next());
+	}
+
+	private static ZOffsetTable compute(
+			final CameraModel cameraModel,
+			final int cameraId,
+			final double radius,
+			final boolean inverse,
+			final int width,
+			final int height) {
+
+		final MirrorCorrectionTransform distortion = new MirrorCorrectionTransform(cameraModel, cameraId, radius, inverse);
+		final double[] minMax = distortion.minMaxOffsetsCorners(width, height);
+		final double d = -(minMax[0] + minMax[1]) / 2.0;
+		final MirrorCorrectionTransform transform = distortion.translate(d);
+
+		final float[] dz = new float[width * height];
+		int i = 0;
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				dz[i++] = (float)transform.dz(x, y);
+
+		return new ZOffsetTable(width, height, dz, transform, d, minMax);
+	}
+
+	@Override
+	public double dz(final long x, final long y) {
+
+		return dz[(int)(y * width + x)];
+	}
+
+	/**
+	 * Bilinearly interpolated offset at a real position, clamped to the
+	 * sensor.
+	 *
+	 * @param x the x position
+	 * @param y the y position
+	 * @return the offset
+	 */
+	public double dz(final double x, final double y) {
+
+		final double xc = Math.max(0, Math.min(width - 1, x));
+		final double yc = Math.max(0, Math.min(height - 1, y));
+		final int x0 = Math.min((int)xc, width - 2);
+		final int y0 = Math.min((int)yc, height - 2);
+		final double fx = xc - x0;
+		final double fy = yc - y0;
+
+		final int i = y0 * width + x0;
+		final double a = dz[i] + fx * (dz[i + 1] - dz[i]);
+		final double b = dz[i + width] + fx * (dz[i + width + 1] - dz[i + width]);
+		return a + fy * (b - a);
+	}
+
+	/**
+	 * @return the offset added to center the corner offsets around zero
+	 */
+	public double getNormalizationOffset() {
+		return normalizationOffset;
+	}
+
+	/**
+	 * @return the normalized transform whose offsets are tabulated
+	 */
+	public MirrorCorrectionTransform getTransform() {
+		return transform;
+	}
+
+	/**
+	 * @return min and max offsets over the sensor, after normalization
+	 */
+	public double[] getMinMax() {
+		return minMax.clone();
+	}
+
+	/**
+	 * @return min and max offsets of the sensor corners before normalization
+	 */
+	public double[] getMinMaxCorners() {
+		return minMaxCorners.clone();
+	}
+
+	private static class Key {
+
+		final int cameraId;
+		final double radius;
+		final boolean inverse;
+		final int width;
+		final int height;
+		final double[] geometry;
+
+		Key(final CameraModel cameraModel, final int cameraId, final double radius, final boolean inverse, final int width, final int height) {
+
+			this.cameraId = cameraId;
+			this.radius = radius;
+			this.inverse = inverse;
+			this.width = width;
+			this.height = height;
+
+			final ScaleAndTranslation cameraToImage = cameraModel.cameraToImage(cameraId);
+			geometry = new double[6];
+			for (int d = 0; d < 3; d++) {
+				geometry[d] = cameraToImage.getScale(d);
+				geometry[d + 3] = cameraToImage.getTranslation(d);
+			}
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+
+			if (!(o instanceof Key))
+				return false;
+
+			final Key k = (Key)o;
+			return cameraId == k.cameraId && radius == k.radius && inverse == k.inverse &&
+					width == k.width && height == k.height && Arrays.equals(geometry, k.geometry);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * (31 * cameraId + Double.hashCode(radius)) + (inverse ? 1 : 0)) + Arrays.hashCode(geometry);
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * A z-displacement field that depends only on the (x,y) position of a
+ * column, as is the case for the mirror distortion.
+ * <p>
+ * A transform with these offsets maps (x, y, z) to (x, y, z + dz(x,y)).
+ * Implementations have to be thread safe.
+ */
+@FunctionalInterface
+public interface ZOffsets {
+
+	double dz(long x, long y);
+
+	/**
+	 * Evaluates the offsets of a transform that changes only z. Every thread
+	 * uses its own copy of the transform.
+	 *
+	 * @param transform the transform
+	 * @return the offsets
+	 */
+	static ZOffsets fromTransform(final RealTransform transform) {
+
+		final int n = transform.numSourceDimensions();
+		final ThreadLocal<RealTransform> transforms = ThreadLocal.withInitial(transform::copy);
+		final ThreadLocal<double[][]> points = ThreadLocal.withInitial(() -> new double[2][n]);
+		return (x, y) -> {
+			final double[][] p = points.get();
+			p[0][0] = x;
+			p[0][1] = y;
+			transforms.get().apply(p[0], p[1]);
+			return p[1][2] - p[0][2];
+		};
+	}
+
+}
@@ -0,0 +1,85 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InvertibleRealTransform;
+
+/**
+ * The transform (x, y, z) to (x, y, z + dz(x,y)) of a {@link ZOffsetTable},
+ * with the offsets interpolated bilinearly between pixels.
+ * <p>
+ * The inverse is exact because x and y do not change.
+ */
+public class ZShiftTransform implements InvertibleRealTransform {
+
+	private final ZOffsetTable offsets;
+	private final double sign;
+
+	public ZShiftTransform(final ZOffsetTable offsets) {
+		this(offsets, 1);
+	}
+
+	private ZShiftTransform(final ZOffsetTable offsets, final double sign) {
+
+		this.offsets = offsets;
+		this.sign = sign;
+	}
+
+	@Override
+	public int numSourceDimensions() {
+		return 3;
+	}
+
+	@Override
+	public int numTargetDimensions() {
+		return 3;
+	}
+
+	@Override
+	public void apply(final double[] source, final double[] target) {
+
+		target[0] = source[0];
+		target[1] = source[1];
+		target[2] = source[2] + sign * offsets.dz(source[0], source[1]);
+	}
+
+	@Override
+	public void apply(final RealLocalizable source, final RealPositionable target) {
+
+		final double x = source.getDoublePosition(0);
+		final double y = source.getDoublePosition(1);
+		target.setPosition(x, 0);
+		target.setPosition(y, 1);
+		target.setPosition(source.getDoublePosition(2) + sign * offsets.dz(x, y), 2);
+	}
+
+	@Override
+	public void applyInverse(final double[] source, final double[] target) {
+
+		source[0] = target[0];
+		source[1] = target[1];
+		source[2] = target[2] - sign * offsets.dz(target[0], target[1]);
+	}
+
+	@Override
+	public void applyInverse(final RealPositionable source, final RealLocalizable target) {
+
+		final double x = target.getDoublePosition(0);
+		final double y = target.getDoublePosition(1);
+		source.setPosition(x, 0);
+		source.setPosition(y, 1);
+		source.setPosition(target.getDoublePosition(2) - sign * offsets.dz(x, y), 2);
+	}
+
+	@Override
+	public ZShiftTransform inverse() {
+		return new ZShiftTransform(offsets, -sign);
+	}
+
+	@Override
+	public ZShiftTransform copy() {
+		// stateless
+		return this;
+	}
+
+}
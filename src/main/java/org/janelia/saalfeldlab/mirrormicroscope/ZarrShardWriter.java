@@ -0,0 +1,400 @@
+package org.janelia.saalfeldlab.mirrormicroscope;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import org.janelia.saalfeldlab.n5.DataType;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Writes 5d (x,y,z,c,t) arrays as Zarr v3 with the sharding codec on a
+ * local file system.
+ * <p>
+ * A shard is encoded in memory by the thread that computed it, inner chunk
+ * after inner chunk followed by the index (offset and length of every
+ * chunk, little endian), and written to its file in one write. Chunks that
+ * are zero are left out of the shard, shards that are zero are not
+ * written. Zarr orders dimensions the other way round, so the shape of an
+ * array is (t,c,z,y,x), and chunks are stored with x varying fastest.
+ */
+public class ZarrShardWriter {
+
+	private static final long MISSING = 0xffffffffffffffffL;
+
+	private final Path root;
+	private final int gzipLevel;
+
+	/**
+	 * @param root the container directory
+	 * @param gzipLevel the gzip level of the inner chunks, or -1 for
+	 *        uncompressed chunks
+	 */
+	public ZarrShardWriter(final String root, final int gzipLevel) {
+
+		this.root = Paths.get(root.replaceFirst("^file:(//)?", ""));
+		this.gzipLevel = gzipLevel;
+	}
+
+	/**
+	 * A sharded array and its metadata.
+	 */
+	public static class Array {
+
+		public final String path;
+		public final long[] dimensions;
+		public final int[] shardSize;
+		public final int[] chunkSize;
+		public final DataType dataType;
+
+		Array(final String path, final long[] dimensions, final int[] shardSize, final int[] chunkSize, final DataType dataType) {
+
+			this.path = path;
+			this.dimensions = dimensions;
+			this.shardSize = shardSize;
+			this.chunkSize = chunkSize;
+			this.dataType = dataType;
+		}
+	}
+
+	public boolean exists(final String path) {
+		return Files.exists(root.resolve(path).resolve("zarr.json"));
+	}
+
+	/**
+	 * Creates an array and the groups above it.
+	 *
+	 * @param path the path of the array
+	 * @param dimensions the 5d dimensions (x,y,z,c,t)
+	 * @param shardSize the 5d shard size, a multiple of the chunk size
+	 * @param chunkSize the 5d size of the inner chunks
+	 * @param dataType the data type
+	 * @return the array
+	 */
+	public Array createArray(final String path, final long[] dimensions, final int[] shardSize, final int[] chunkSize, final DataType dataType) throws IOException {
+
+		final Array array = array(path, dimensions, shardSize, chunkSize, dataType);
+		createGroups(parent(path));
+
+		final JsonObject codec = new JsonObject();
+		codec.addProperty("name", "sharding_indexed");
+		final JsonObject configuration = new JsonObject();
+		configuration.add("chunk_shape", reversed(chunkSize));
+		final JsonArray codecs = new JsonArray();
+		codecs.add(bytesCodec());
+		if (gzipLevel >= 0) {
+			final JsonObject gzip = new JsonObject();
+			gzip.addProperty("name", "gzip");
+			final JsonObject level = new JsonObject();
+			level.addProperty("level", gzipLevel);
+			gzip.add("configuration", level);
+			codecs.add(gzip);
+		}
+		configuration.add("codecs", codecs);
+		final JsonArray indexCodecs = new JsonArray();
+		indexCodecs.add(bytesCodec());
+		configuration.add("index_codecs", indexCodecs);
+		configuration.addProperty("index_location", "end");
+		codec.add("configuration", configuration);
+
+		final JsonObject meta = new JsonObject();
+		meta.addProperty("zarr_format", 3);
+		meta.addProperty("node_type", "array");
+		final JsonArray shape = new JsonArray();
+		for (int d = 4; d >= 0; d--)
+			shape.add(dimensions[d]);
+		meta.add("shape", shape);
+		meta.addProperty("data_type", dataType.toString().toLowerCase(Locale.ROOT));
+		final JsonObject chunkGrid = new JsonObject();
+		chunkGrid.addProperty("name", "regular");
+		final JsonObject gridConfiguration = new JsonObject();
+		gridConfiguration.add("chunk_shape", reversed(shardSize));
+		chunkGrid.add("configuration", gridConfiguration);
+		meta.add("chunk_grid", chunkGrid);
+		final JsonObject keyEncoding = new JsonObject();
+		keyEncoding.addProperty("name", "default");
+		final JsonObject separator = new JsonObject();
+		separator.addProperty("separator", "/");
+		keyEncoding.add("configuration", separator);
+		meta.add("chunk_key_encoding", keyEncoding);
+		meta.addProperty("fill_value", 0);
+		final JsonArray codecList = new JsonArray();
+		codecList.add(codec);
+		meta.add("codecs", codecList);
+		final JsonArray names = new JsonArray();
+		for (final String name : new String[]{"t", "c", "z", "y", "x"})
+			names.add(name);
+		meta.add("dimension_names", names);
+
+		writeMetadata(path, meta);
+		return array;
+	}
+
+	/**
+	 * An array that another process creates, see {@link #createArray}.
+	 */
+	public Array array(final String path, final long[] dimensions, final int[] shardSize, final int[] chunkSize, final DataType dataType) {
+
+		for (int d = 0; d < 5; d++)
+			if (shardSize[d] % chunkSize[d] != 0)
+				throw new IllegalArgumentException("shard size " + shardSize[d] + " is not a multiple of the chunk size " + chunkSize[d]);
+
+		return new Array(path, dimensions.clone(), shardSize.clone(), chunkSize.clone(), dataType);
+	}
+
+	/**
+	 * Creates a group with attributes, and the groups above it.
+	 */
+	public void createGroup(final String path, final JsonObject attributes) throws IOException {
+
+		createGroups(parent(path));
+		final JsonObject meta = new JsonObject();
+		meta.addProperty("zarr_format", 3);
+		meta.addProperty("node_type", "group");
+		meta.add("attributes", attributes);
+		writeMetadata(path, meta);
+	}
+
+	private void createGroups(final String path) throws IOException {
+
+		if (path == null)
+			return;
+
+		createGroups(parent(path));
+		if (!Files.exists(root.resolve(path).resolve("zarr.json")))
+			createGroup(path, new JsonObject());
+	}
+
+	private static String parent(final String path) {
+
+		final String p = path.replaceAll("^/+|/+$", "");
+		if (p.isEmpty())
+			return null;
+
+		final int i = p.lastIndexOf('/');
+		return i < 0 ? "" : p.substring(0, i);
+	}
+
+	/**
+	 * Writes zarr.json atomically, so that other processes never read it
+	 * partially written.
+	 */
+	private void writeMetadata(final String path, final JsonObject meta) throws IOException {
+
+		final Path dir = root.resolve(path);
+		Files.createDirectories(dir);
+		final Path tmp = Files.createTempFile(dir, "zarr.json", ".tmp");
+		Files.write(tmp, new GsonBuilder().setPrettyPrinting().create().toJson(meta).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, dir.resolve("zarr.json"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * The ome-zarr 0.5 group attributes of multiscales metadata in the 0.4
+	 * layout of {@link FieldCorrection#buildNgffMeta}.
+	 */
+	public static JsonObject omeAttributes(final JsonElement ngffMeta) {
+
+		final JsonArray multiscales = ngffMeta.getAsJsonObject().getAsJsonArray("multiscales");
+		for (final JsonElement m : multiscales)
+			m.getAsJsonObject().remove("version");
+
+		final JsonObject ome = new JsonObject();
+		ome.addProperty("version", "0.5");
+		ome.add("multiscales", multiscales);
+		final JsonObject attributes = new JsonObject();
+		attributes.add("ome", ome);
+		return attributes;
+	}
+
+	private static JsonObject bytesCodec() {
+
+		final JsonObject bytes = new JsonObject();
+		bytes.addProperty("name", "bytes");
+		final JsonObject endian = new JsonObject();
+		endian.addProperty("endian", "little");
+		bytes.add("configuration", endian);
+		return bytes;
+	}
+
+	private static JsonArray reversed(final int[] size) {
+
+		final JsonArray a = new JsonArray();
+		for (int d = size.length - 1; d >= 0; d--)
+			a.add(size[d]);
+		return a;
+	}
+
+	private Path shardPath(final Array array, final long[] gridPosition) {
+
+		Path p = root.resolve(array.path).resolve("c");
+		for (int d = 4; d >= 0; d--)
+			p = p.resolve(Long.toString(gridPosition[d]));
+		return p;
+	}
+
+	/**
+	 * Encodes and writes a shard.
+	 *
+	 * @param array the array
+	 * @param gridPosition the 5d position of the shard in the shard grid
+	 * @param data the primitive array of the shard's data, x varying
+	 *        fastest, may be smaller than a shard at the border of the array
+	 * @param size the 3d size of data
+	 * @return the number of bytes written, 0 if the shard is zero
+	 */
+	public long writeShard(final Array array, final long[] gridPosition, final Object data, final int[] size) {
+
+		final int[] c = array.chunkSize;
+		final int[] n = new int[3];
+		int numChunks = 1;
+		for (int d = 0; d < 3; d++) {
+			n[d] = array.shardSize[d] / c[d];
+			numChunks *= n[d];
+		}
+
+		final int bytesPerElement = InputBlockCache.bytesPerElement(array.dataType);
+		final ByteBuffer chunk = ByteBuffer.allocate(c[0] * c[1] * c[2] * bytesPerElement).order(ByteOrder.LITTLE_ENDIAN);
+		final ByteBuffer index = ByteBuffer.allocate(numChunks * 16).order(ByteOrder.LITTLE_ENDIAN);
+		final ByteArrayOutputStream shard = new ByteArrayOutputStream();
+		try {
+			// the index is in C order of (z,y,x) chunk positions
+			for (int cz = 0; cz < n[2]; cz++) {
+				for (int cy = 0; cy < n[1]; cy++) {
+					for (int cx = 0; cx < n[0]; cx++) {
+						final int[] min = {cx * c[0], cy * c[1], cz * c[2]};
+						if (min[0] >= size[0] || min[1] >= size[1] || min[2] >= size[2]
+								|| !copyChunk(data, size, min, c, chunk, array.dataType)) {
+							index.putLong(MISSING).putLong(MISSING);
+							continue;
+						}
+
+						final long offset = shard.size();
+						if (gzipLevel >= 0) {
+							final OutputStream gzip = new LevelGZIPOutputStream(shard, gzipLevel);
+							gzip.write(chunk.array());
+							gzip.close();
+						} else
+							shard.write(chunk.array());
+
+						index.putLong(offset).putLong(shard.size() - offset);
+					}
+				}
+			}
+
+			final Path path = shardPath(array, gridPosition);
+			if (shard.size() == 0) {
+				Files.deleteIfExists(path);
+				return 0;
+			}
+
+			shard.write(index.array());
+			Files.createDirectories(path.getParent());
+			Files.write(path, shard.toByteArray());
+			return shard.size();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void deleteShard(final Array array, final long[] gridPosition) {
+
+		try {
+			Files.deleteIfExists(shardPath(array, gridPosition));
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Copies a chunk of data into buffer, padded with zeros to the full chunk
+	 * size.
+	 *
+	 * @return whether the chunk has non-zero elements
+	 */
+	private static boolean copyChunk(
+			final Object data,
+			final int[] size,
+			final int[] min,
+			final int[] chunkSize,
+			final ByteBuffer buffer,
+			final DataType dataType) {
+
+		final byte[] bytes = buffer.array();
+		Arrays.fill(bytes, (byte)0);
+
+		final int bytesPerElement = InputBlockCache.bytesPerElement(dataType);
+		final int sx = Math.min(chunkSize[0], size[0] - min[0]);
+		final int sy = Math.min(chunkSize[1], size[1] - min[1]);
+		final int sz = Math.min(chunkSize[2], size[2] - min[2]);
+		for (int z = 0; z < sz; z++) {
+			for (int y = 0; y < sy; y++) {
+				final int src = ((min[2] + z) * size[1] + min[1] + y) * size[0] + min[0];
+				buffer.position((z * chunkSize[1] + y) * chunkSize[0] * bytesPerElement);
+				switch (dataType) {
+				case UINT8:
+				case INT8:
+					buffer.put((byte[])data, src, sx);
+					break;
+				case UINT16:
+				case INT16:
+					buffer.asShortBuffer().put((short[])data, src, sx);
+					break;
+				case UINT32:
+				case INT32:
+					buffer.asIntBuffer().put((int[])data, src, sx);
+					break;
+				case UINT64:
+				case INT64:
+					buffer.asLongBuffer().put((long[])data, src, sx);
+					break;
+				case FLOAT32:
+					buffer.asFloatBuffer().put((float[])data, src, sx);
+					break;
+				case FLOAT64:
+					buffer.asDoubleBuffer().put((double[])data, src, sx);
+					break;
+				default:
+					throw new IllegalArgumentException("zarr v3 output is not implemented for " + dataType);
+				}
+			}
+		}
+
+		for (final byte b : bytes)
+			if (b != 0)
+				return true;
+
+		return false;
+	}
+
+	private static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+		LevelGZIPOutputStream(final OutputStream out, final int level) throws IOException {
+
+			super(out);
+			def.setLevel(level);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// only finish the gzip stream, the shard is written to later
+			finish();
+			def.end();
+		}
+	}
+
+}
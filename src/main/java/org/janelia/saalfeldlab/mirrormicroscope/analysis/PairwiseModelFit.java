@@ -13,8 +13,7 @@ import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.janelia.saalfeldlab.mirrormicroscope.CameraModel;
-import org.janelia.saalfeldlab.mirrormicroscope.FieldCorrection;
-import org.janelia.saalfeldlab.mirrormicroscope.Normalization;
+import org.janelia.saalfeldlab.mirrormicroscope.MirrorCorrectionTransform;
 import org.janelia.saalfeldlab.mirrormicroscope.OpticalModel;
 
 import mpicbg.models.Affine3D;
@@ -27,10 +26,8 @@ import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.InvertibleRealTransform;
-import net.imglib2.realtransform.InvertibleRealTransformSequence;
 import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.Scale3D;
-import net.imglib2.realtransform.Translation3D;
 import net.imglib2.util.Util;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
@@ -125,27 +122,14 @@ public class PairwiseModelFit {
 	
 	public InvertibleRealTransform totalDistortionCorrectionTransform(int setupId, boolean inverse) {
 		final int cameraId = setupToCamera(setupId);
-		InvertibleRealTransformSequence tf = FieldCorrection.concatenate(
-				cameraModel.cameraToImage(cameraId),
-				OpticalModel.distortionTransform(true),
-				cameraModel.imageToCamera(cameraId));
-
-		final double[] minMax = Normalization.minMaxOffsetsCorners(tf, itvl);
-		addNormalizationOffset(tf, minMax);
+		final MirrorCorrectionTransform tf = new MirrorCorrectionTransform(cameraModel, cameraId, OpticalModel.R, true)
+				.normalize(itvl.dimension(0), itvl.dimension(1));
 
 		if (inverse)
 			return tf.inverse();
 		else
 			return tf;
 	}
-	
-	private void addNormalizationOffset( InvertibleRealTransformSequence totalDistortion, double[] minMax ) {
-        final double min = minMax[0];
-        final double max = minMax[1];
-//        final double d = Math.abs( min ) > Math.abs( max ) ? max : min;
-        final double d = (min + max) / 2.0;
-		totalDistortion.add( new Translation3D(new double[] {0, 0, -d}) );
-	}
 
 	public static void addTransformedCorrespondences(
 			final ArrayList<double[]> allPts, 
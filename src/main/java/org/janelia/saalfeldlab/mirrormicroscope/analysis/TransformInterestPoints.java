@@ -7,8 +7,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.janelia.saalfeldlab.mirrormicroscope.CameraModel;
-import org.janelia.saalfeldlab.mirrormicroscope.FieldCorrection;
-import org.janelia.saalfeldlab.mirrormicroscope.Normalization;
+import org.janelia.saalfeldlab.mirrormicroscope.MirrorCorrectionTransform;
 import org.janelia.saalfeldlab.mirrormicroscope.OpticalModel;
 
 import mpicbg.spim.data.SpimDataException;
@@ -16,8 +15,6 @@ import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.realtransform.InvertibleRealTransform;
-import net.imglib2.realtransform.InvertibleRealTransformSequence;
-import net.imglib2.realtransform.Translation3D;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
@@ -98,8 +95,7 @@ public class TransformInterestPoints {
 	
 			System.out.println("id: " + id);
 			final ViewId viewId = new ViewId(0,id);
-			final InvertibleRealTransformSequence tmpTform = totalDistortionCorrectionTransform(id);
-			final InvertibleRealTransform tform = invert ? tmpTform.inverse() : tmpTform;
+			final MirrorCorrectionTransform dz = totalDistortionCorrectionTransform(id);
 
 			final Map<ViewId, ViewInterestPointLists> iMap = data.getViewInterestPoints().getViewInterestPoints();
 			final InterestPoints ip = iMap.get(viewId).getInterestPointList(detectionName);
@@ -108,7 +104,7 @@ public class TransformInterestPoints {
 
 			final ArrayList<InterestPoint> transformedPts = new ArrayList<>(pts.size());
 			for (InterestPoint p : pts) {
-				transformedPts.add(transformPoint(tform, p));
+				transformedPts.add(transformPoint(dz, invert, p));
 			}
 
 			points.put(viewId, transformedPts);
@@ -122,6 +118,19 @@ public class TransformInterestPoints {
 		new XmlIoSpimData2().save( data, xmlURI );
 	}
 	
+	/**
+	 * Shifts a point along z by the exact offset at its (x,y) position, also
+	 * outside of the sensor. The distortion leaves x and y unchanged, so the
+	 * inverse subtracts the same offset.
+	 */
+	public static InterestPoint transformPoint( MirrorCorrectionTransform dz, boolean invert, InterestPoint pt) {
+
+		final double[] out = pt.getL().clone();
+		final double d = dz.dz(out[0], out[1]);
+		out[2] += invert ? -d : d;
+		return new InterestPoint(pt.getId(), out);
+	}
+
 	public static InterestPoint transformPoint( InvertibleRealTransform tform, InterestPoint pt) {
 
 		final double[] out = new double[3];
@@ -146,24 +155,11 @@ public class TransformInterestPoints {
 		return setupIds;
 	}
 
-	public InvertibleRealTransformSequence totalDistortionCorrectionTransform(int setupId) {
+	public MirrorCorrectionTransform totalDistortionCorrectionTransform(int setupId) {
 
 		final int cameraId = setupToCamera(setupId);
-		InvertibleRealTransformSequence tform = FieldCorrection.concatenate(
-				cameraModel.cameraToImage(cameraId),
-				new OpticalModel(radius).distortionTransform(true),
-				cameraModel.imageToCamera(cameraId));
-
-		final double[] minMax = Normalization.minMaxOffsetsCorners(tform, itvl);
-		addNormalizationOffset(tform, minMax);
-		return tform;
-	}
-	
-	private void addNormalizationOffset( InvertibleRealTransformSequence totalDistortion, double[] minMax ) {
-        final double min = minMax[0];
-        final double max = minMax[1];
-        final double d = (min + max) / 2.0;
-		totalDistortion.add( new Translation3D(new double[] {0, 0, -d}) );
+		return new MirrorCorrectionTransform(cameraModel, cameraId, radius, true)
+				.normalize(itvl.dimension(0), itvl.dimension(1));
 	}
 
 }